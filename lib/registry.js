@@ -218,7 +218,10 @@ class ServiceRegistry extends EventEmitter {
 			res.set('Access-Control-Allow-Origin', '*');
 			res.set('Access-Control-Allow-Methods', 'POST, GET, OPTIONS');
 			res.set('Access-Control-Max-Age', 1000);
-			res.set('Access-Control-Allow-Headers', 'origin, x-csrftoken, content-type, accept');
+			res.set(
+				'Access-Control-Allow-Headers',
+				'origin, x-csrftoken, content-type, accept, traceparent'
+			);
 			res.end();
 			return;
 		}
@@ -11,6 +11,9 @@ const EventEmitter = require('events');
 const semver = require('semver');
 const types = require('./types');
 
+// Types of the event data fields which can be used as event filters
+const FILTER_TYPES = ['int', 'integer', 'number', 'float', 'double', 'bool', 'boolean', 'string'];
+
 class Service extends EventEmitter {
 	/**
 	 * Service constructor
@@ -179,6 +182,8 @@ class Service extends EventEmitter {
 	 * @param {Boolean} [options.callback] Flag which specifies if a callback function should be given to this method.
 	 * If false, a value can be sent back to clients by returning a value, a Promise, or using a generator function.
 	 * True by default.
+	 * @param {Boolean} [options.readOnly] Flag which marks the method as free of side effects, so that its results
+	 * may be cached. HTTP GET calls of read-only methods can be revalidated with an ETag. False by default.
 	 *
 	 * @param [options.params] An array of JSON structures, each of which describes an input parameter
 	 * @param options.params.name The parameter's name.
@@ -260,6 +265,9 @@ class Service extends EventEmitter {
 			options.callback !== undefined ? options.callback : methodInfo.callback;
 		methodInfo.callback = requiresCallback !== undefined ? requiresCallback : true;
 
+		const readOnly = options.readOnly !== undefined ? options.readOnly : methodInfo.readOnly;
+		methodInfo.readOnly = !!readOnly;
+
 		if (!methodInfo.hasOwnProperty('this')) {
 			Object.defineProperty(methodInfo, 'this', {
 				configurable: false,
@@ -487,6 +495,8 @@ class Service extends EventEmitter {
 	 * Defines an event that can be emitted to clients.
 	 * @param {String} eventName the name of the event (e.g. 'imageReady')
 	 * @param eventInfo A JSON structure with the event options, or a string holding descriptive text.
+	 * @param {String[]} [eventInfo.filters] Names of fields of the event type which clients can filter on
+	 * when subscribing. Only events whose fields equal the subscription's filter values are sent to the client.
 	 * @returns {Service} The current API instance.
 	 */
 	event(eventName, eventInfo) {
@@ -531,12 +541,34 @@ class Service extends EventEmitter {
 			}
 		}
 
+		const filters = (eventInfo.filters || []).map(filter => {
+			// Imported event metadata holds the filters as { name, type }
+			const filterName = typeof filter === 'object' ? filter.name : filter;
+			const typeInfo = this.typeMap[eventInfo.type];
+			if (!typeInfo || typeInfo.enum || eventInfo.isArray) {
+				throw new Error(`Event filters require an object event type: ${eventName}`);
+			}
+			const fieldInfo = typeInfo.struct[filterName];
+			if (!fieldInfo) {
+				throw new Error(`Undefined event filter for event ${eventName}: ${filterName}`);
+			}
+			if (fieldInfo.isArray || FILTER_TYPES.indexOf(fieldInfo.type) === -1) {
+				throw new Error(
+					`Event filters must be of a string, number or boolean type: ${eventName}.${filterName}`
+				);
+			}
+			return { name: filterName, type: fieldInfo.type };
+		});
+
 		this.eventMap[eventName] = {
 			name: eventName,
 			description: eventInfo.description || types.missingDocumentation,
 			type: eventInfo.type || null,
 			isArray: Boolean(eventInfo.isArray),
 		};
+		if (filters.length > 0) {
+			this.eventMap[eventName].filters = filters;
+		}
 
 		this.currentGroup.items.push(`event:${eventName}`);
 
@@ -3,12 +3,30 @@
 const url = require('url');
 const ServiceError = require('./error');
 
+// W3C trace context: version-traceId-parentId-flags
+const TRACE_PARENT_PATTERN = /^([0-9a-f]{2})-([0-9a-f]{32})-([0-9a-f]{16})-([0-9a-f]{2})$/;
+
 class Trace {
 	constructor(bunyanLogger) {
 		this._enabled = !!bunyanLogger;
 		this._logger = bunyanLogger;
 	}
 
+	/**
+	 * Parses a W3C traceparent value, as sent by clients in the traceparent HTTP header
+	 * or the traceparent member of a JSON-RPC request
+	 *
+	 * @param {string} traceParent
+	 * @returns {object|null} { traceId, parentId, flags } or null for missing or invalid values
+	 */
+	static parseTraceParent(traceParent) {
+		const match = typeof traceParent === 'string' && TRACE_PARENT_PATTERN.exec(traceParent);
+		if (!match || /^0+$/.test(match[2]) || /^0+$/.test(match[3])) {
+			return null;
+		}
+		return { traceId: match[2], parentId: match[3], flags: match[4] };
+	}
+
 	_stringify(object) {
 		if (!this._enabled) {
 			return null;
@@ -56,10 +74,25 @@ class Trace {
 		this._log(context, 'disconnected');
 	}
 
-	call(context, methodInfo, args) {
+	call(context, methodInfo, args, traceContext) {
 		this._log(context, `method "${methodInfo.name}" call`, {
 			method: methodInfo.name,
 			args: this._stringify(args, null, 2),
+			traceId: traceContext ? traceContext.traceId : undefined,
+			parentId: traceContext ? traceContext.parentId : undefined,
+		});
+	}
+
+	/**
+	 * Logs the server execution time of a method call, from the request until its result is ready
+	 * The trace context, if any, joins the entry with the client span of the call
+	 */
+	complete(context, methodInfo, traceContext, durationMs) {
+		this._log(context, `method "${methodInfo.name}" completed in ${durationMs} ms`, {
+			method: methodInfo.name,
+			duration: durationMs,
+			traceId: traceContext ? traceContext.traceId : undefined,
+			parentId: traceContext ? traceContext.parentId : undefined,
 		});
 	}
 
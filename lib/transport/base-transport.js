@@ -7,14 +7,54 @@
 
 const jsonrpc = require('./json-rpc');
 const { AsServiceError } = require('../error');
+const Trace = require('../trace');
 const EventEmitter = require('events').EventEmitter;
 
+/**
+ * Converts the filter of an event subscription to the types of the filtered fields.
+ * Subscriptions without filter values receive all events and have a null filter.
+ * @param service
+ * @param eventInfo
+ * @param [filter] Field values which the event data must have
+ * @returns {{key: String, filter: Object}} The filter, and a key which is the same for equal filters
+ */
+function eventFilter(service, eventInfo, filter) {
+	const names = Object.keys(filter || {}).sort();
+	if (names.length === 0) {
+		return { key: '', filter: null };
+	}
+	const converted = {};
+	for (const name of names) {
+		const filterInfo = eventInfo.filters.find(f => f.name === name);
+		converted[name] = service.type(filterInfo.type).convert(filter[name]);
+	}
+	return { key: JSON.stringify(names.map(name => [name, converted[name]])), filter: converted };
+}
+
+/**
+ * Checks if event data matches any of the filters of a context's subscriptions
+ * @param eventData
+ * @param {Map} filters
+ * @returns {boolean}
+ */
+function eventMatchesFilters(eventData, filters) {
+	for (const filter of filters.values()) {
+		if (filter === null) {
+			return true;
+		}
+		if (eventData && Object.keys(filter).every(name => eventData[name] === filter[name])) {
+			return true;
+		}
+	}
+	return false;
+}
+
 class BaseTransport extends EventEmitter {
 	constructor(registry) {
 		super();
 		this.registry = registry;
 		this.trace = registry.trace;
-		this.eventContextMap = new Map(); // "service:eventName" -> Set.<eventContext>
+		this.eventContextMap = new Map(); // "service:eventName" -> Map.<eventContext, Map.<filterKey, filter>>
 		this.eventListeners = new Map(); // "service:eventName" -> function
 		this.eventContextServices = new Map(); // "service:eventName" -> service
 	}
@@ -39,12 +79,12 @@ class BaseTransport extends EventEmitter {
 		// Un-subscribe events:
 		for (const eventContextMapEntry of this.eventContextMap.entries()) {
 			const eventContextMapKey = eventContextMapEntry[0];
-			const eventContextSet = eventContextMapEntry[1];
+			const eventContexts = eventContextMapEntry[1];
 
-			if (eventContextSet.has(context)) {
-				eventContextSet.delete(context);
+			if (eventContexts.has(context)) {
+				eventContexts.delete(context);
 
-				if (eventContextSet.size === 0) {
+				if (eventContexts.size === 0) {
 					const eventListener = this.eventListeners.get(eventContextMapKey);
 					const service = this.eventContextServices.get(eventContextMapKey);
 
@@ -108,17 +148,29 @@ class BaseTransport extends EventEmitter {
 		}
 
 		let eventName;
-		if (msg.method.startsWith('rpc.on')) {
-			// Event subscription
+		let subscription;
+		if (msg.method.startsWith('rpc.')) {
 			eventName = msg.params[0];
+			try {
+				subscription = eventFilter(service, service.eventMap[eventName], msg.params[1]);
+			} catch (filterErr) {
+				const err = jsonrpc.error(-32602, 'Invalid event filter', filterErr.message);
+				this.trace.error(context, null, err);
+				this.sendMessage(jsonrpc.response(msg.id, err), context);
+				return;
+			}
+		}
+
+		if (msg.method.startsWith('rpc.on')) {
+			// Event subscription, with an optional filter which the event data must match
 			const eventInfo = service.eventMap[eventName];
 			const eventContextMapKey = `${service.name}:${eventName}`;
-			let eventContextSet = this.eventContextMap.get(eventContextMapKey);
+			let eventContexts = this.eventContextMap.get(eventContextMapKey);
 
-			if (!eventContextSet) {
-				// First subscriber for this event, create context set and add listener:
-				eventContextSet = new Set();
-				this.eventContextMap.set(eventContextMapKey, eventContextSet);
+			if (!eventContexts) {
+				// First subscriber for this event, create context map and add listener:
+				eventContexts = new Map();
+				this.eventContextMap.set(eventContextMapKey, eventContexts);
 
 				const eventListener = (eventData, matchContextParams) => {
 					if (eventInfo.type /* && eventData*/) {
@@ -131,9 +183,15 @@ class BaseTransport extends EventEmitter {
 						);
 					}
 
-					for (const eventContext of eventContextSet) {
+					for (const eventContextEntry of eventContexts) {
+						const eventContext = eventContextEntry[0];
 						const eventContextParams = eventContext.params || {};
 
+						if (!eventMatchesFilters(eventData, eventContextEntry[1])) {
+							// Events are filtered here, so that clients only receive the events they need
+							continue;
+						}
+
 						if (typeof matchContextParams === 'object') {
 							let contextMatchFailed = false;
 
@@ -167,22 +225,26 @@ class BaseTransport extends EventEmitter {
 				service.on(eventName, eventListener);
 			}
 
-			if (!eventContextSet.has(context)) {
-				eventContextSet.add(context);
+			if (!eventContexts.has(context)) {
+				eventContexts.set(context, new Map());
 				this.trace.subscribe(context, eventInfo);
 			}
+			eventContexts.get(context).set(subscription.key, subscription.filter);
 		} else if (msg.method.startsWith('rpc.off')) {
-			// Cancel event subscription
-			eventName = msg.params[0];
+			// Cancel the event subscription with the given filter
 			const eventContextMapKey = `${service.name}:${eventName}`;
-			const eventContextSet = this.eventContextMap.get(eventContextMapKey);
+			const eventContexts = this.eventContextMap.get(eventContextMapKey);
 			const eventInfo = service.eventMap[eventName];
+			const filters = eventContexts && eventContexts.get(context);
 
-			if (eventContextSet) {
-				eventContextSet.delete(context);
-				this.trace.unsubscribe(context, eventInfo);
+			if (filters) {
+				filters.delete(subscription.key);
+				if (filters.size === 0) {
+					eventContexts.delete(context);
+					this.trace.unsubscribe(context, eventInfo);
+				}
 
-				if (eventContextSet.size === 0) {
+				if (eventContexts.size === 0) {
 					const eventListener = this.eventListeners.get(eventContextMapKey);
 
 					if (eventListener) {
@@ -260,6 +322,8 @@ class BaseTransport extends EventEmitter {
 		const id = request.id;
 		const methodName = request.method;
 		const methodInfo = service.methodMap[methodName];
+		const traceContext = Trace.parseTraceParent(request.traceparent);
+		const startTime = process.hrtime();
 
 		let responseIsSent = false;
 
@@ -300,14 +364,24 @@ class BaseTransport extends EventEmitter {
 				this.trace.error(context, methodInfo, serviceErr);
 			}
 
+			const elapsed = process.hrtime(startTime);
+			const durationMs = Math.round((elapsed[0] * 1e3 + elapsed[1] / 1e6) * 1e3) / 1e3;
+			this.trace.complete(context, methodInfo, traceContext, durationMs);
+
+			const response = jsonrpc.response(id, error, result);
+			if (traceContext) {
+				// Traced clients get the server execution time back, to split it from network time
+				response.serverTiming = durationMs;
+			}
+
 			format = format || null;
-			this.sendMessage(jsonrpc.response(id, error, result), context, format);
+			this.sendMessage(response, context, format);
 			responseIsSent = true;
 		};
 
 		try {
 			const params = this.parseParams(service, methodInfo, request.params);
-			this.trace.call(context, methodInfo, params);
+			this.trace.call(context, methodInfo, params, traceContext);
 
 			if ((methodInfo.async || methodInfo.returns) && methodInfo.callback) {
 				params.push(sendResponse);
@@ -0,0 +1,319 @@
+/**
+ * Minimal CBOR (RFC 7049) encoder/decoder for JSON-RPC messages.
+ * Values are encoded the way JSON.stringify would serialize them, except for buffers,
+ * which are encoded natively as byte strings instead of { type, data } objects.
+ */
+
+'use strict';
+
+const MAJOR_UNSIGNED = 0;
+const MAJOR_NEGATIVE = 1;
+const MAJOR_BYTES = 2;
+const MAJOR_TEXT = 3;
+const MAJOR_ARRAY = 4;
+const MAJOR_MAP = 5;
+const MAJOR_TAG = 6;
+const MAJOR_SIMPLE = 7;
+
+const INDEFINITE_LENGTH = 31;
+const BREAK = 0xff;
+
+class Encoder {
+	constructor() {
+		this.buffer = Buffer.alloc(256);
+		this.offset = 0;
+	}
+
+	_reserve(length) {
+		if (this.offset + length > this.buffer.length) {
+			const grown = Buffer.alloc(Math.max(this.buffer.length * 2, this.offset + length));
+			this.buffer.copy(grown, 0, 0, this.offset);
+			this.buffer = grown;
+		}
+	}
+
+	_writeHead(major, length) {
+		this._reserve(9);
+		if (length < 24) {
+			this.buffer[this.offset++] = (major << 5) | length;
+		} else if (length < 0x100) {
+			this.buffer[this.offset++] = (major << 5) | 24;
+			this.buffer[this.offset++] = length;
+		} else if (length < 0x10000) {
+			this.buffer[this.offset++] = (major << 5) | 25;
+			this.offset = this.buffer.writeUInt16BE(length, this.offset);
+		} else if (length < 0x100000000) {
+			this.buffer[this.offset++] = (major << 5) | 26;
+			this.offset = this.buffer.writeUInt32BE(length, this.offset);
+		} else {
+			this.buffer[this.offset++] = (major << 5) | 27;
+			this.offset = this.buffer.writeUInt32BE(Math.floor(length / 0x100000000), this.offset);
+			this.offset = this.buffer.writeUInt32BE(length % 0x100000000, this.offset);
+		}
+	}
+
+	_writeBytes(bytes) {
+		this._reserve(bytes.length);
+		bytes.copy(this.buffer, this.offset);
+		this.offset += bytes.length;
+	}
+
+	write(value) {
+		if (value === null || value === undefined || typeof value === 'function') {
+			this._reserve(1);
+			this.buffer[this.offset++] = 0xf6; // null
+		} else if (typeof value === 'boolean') {
+			this._reserve(1);
+			this.buffer[this.offset++] = value ? 0xf5 : 0xf4;
+		} else if (typeof value === 'number') {
+			this._writeNumber(value);
+		} else if (typeof value === 'string') {
+			const bytes = Buffer.from(value, 'utf8');
+			this._writeHead(MAJOR_TEXT, bytes.length);
+			this._writeBytes(bytes);
+		} else if (Buffer.isBuffer(value)) {
+			this._writeHead(MAJOR_BYTES, value.length);
+			this._writeBytes(value);
+		} else if (typeof value.toJSON === 'function') {
+			// Dates and other objects with a custom JSON representation
+			this.write(value.toJSON());
+		} else if (Array.isArray(value)) {
+			this._writeHead(MAJOR_ARRAY, value.length);
+			for (const item of value) {
+				this.write(item);
+			}
+		} else {
+			const keys = Object.keys(value).filter(
+				key => value[key] !== undefined && typeof value[key] !== 'function'
+			);
+			this._writeHead(MAJOR_MAP, keys.length);
+			for (const key of keys) {
+				this.write(key);
+				this.write(value[key]);
+			}
+		}
+	}
+
+	_writeNumber(value) {
+		if (Number.isSafeInteger(value)) {
+			if (value >= 0) {
+				this._writeHead(MAJOR_UNSIGNED, value);
+			} else {
+				this._writeHead(MAJOR_NEGATIVE, -1 - value);
+			}
+		} else if (!isFinite(value)) {
+			// JSON has no representation for NaN and Infinity either
+			this.write(null);
+		} else {
+			this._reserve(9);
+			this.buffer[this.offset++] = 0xfb;
+			this.offset = this.buffer.writeDoubleBE(value, this.offset);
+		}
+	}
+
+	result() {
+		return this.buffer.slice(0, this.offset);
+	}
+}
+
+class Decoder {
+	constructor(buffer) {
+		this.buffer = buffer;
+		this.offset = 0;
+	}
+
+	_ensure(length) {
+		if (this.offset + length > this.buffer.length) {
+			throw new Error('Unexpected end of CBOR data');
+		}
+	}
+
+	_readLength(info) {
+		if (info < 24) {
+			return info;
+		}
+		let length;
+		switch (info) {
+			case 24:
+				this._ensure(1);
+				length = this.buffer[this.offset];
+				this.offset += 1;
+				return length;
+			case 25:
+				this._ensure(2);
+				length = this.buffer.readUInt16BE(this.offset);
+				this.offset += 2;
+				return length;
+			case 26:
+				this._ensure(4);
+				length = this.buffer.readUInt32BE(this.offset);
+				this.offset += 4;
+				return length;
+			case 27:
+				this._ensure(8);
+				length =
+					this.buffer.readUInt32BE(this.offset) * 0x100000000 +
+					this.buffer.readUInt32BE(this.offset + 4);
+				this.offset += 8;
+				return length;
+			case INDEFINITE_LENGTH:
+				return -1;
+			default:
+				throw new Error(`Invalid CBOR length encoding: ${info}`);
+		}
+	}
+
+	_isBreak() {
+		this._ensure(1);
+		if (this.buffer[this.offset] === BREAK) {
+			this.offset++;
+			return true;
+		}
+		return false;
+	}
+
+	_readBytes(major, length) {
+		if (length === -1) {
+			// Indefinite length strings are sequences of definite length chunks
+			const chunks = [];
+			while (!this._isBreak()) {
+				const head = this.buffer[this.offset++];
+				if (head >> 5 !== major) {
+					throw new Error('Invalid CBOR string chunk');
+				}
+				chunks.push(this._readBytes(major, this._readLength(head & 0x1f)));
+			}
+			return Buffer.concat(chunks);
+		}
+		this._ensure(length);
+		const bytes = this.buffer.slice(this.offset, this.offset + length);
+		this.offset += length;
+		return bytes;
+	}
+
+	read() {
+		this._ensure(1);
+		const head = this.buffer[this.offset++];
+		const major = head >> 5;
+		const info = head & 0x1f;
+
+		switch (major) {
+			case MAJOR_UNSIGNED:
+				return this._readLength(info);
+			case MAJOR_NEGATIVE:
+				return -1 - this._readLength(info);
+			case MAJOR_BYTES:
+				return Buffer.from(this._readBytes(major, this._readLength(info)));
+			case MAJOR_TEXT:
+				return this._readBytes(major, this._readLength(info)).toString('utf8');
+			case MAJOR_ARRAY: {
+				const length = this._readLength(info);
+				const array = [];
+				while (length === -1 ? !this._isBreak() : array.length < length) {
+					array.push(this.read());
+				}
+				return array;
+			}
+			case MAJOR_MAP: {
+				const length = this._readLength(info);
+				const map = {};
+				for (let i = 0; length === -1 ? !this._isBreak() : i < length; i++) {
+					const key = this.read();
+					const value = this.read();
+					if (key === '__proto__') {
+						// Defined as an own property like JSON.parse does, instead of replacing the prototype
+						Object.defineProperty(map, key, {
+							value,
+							enumerable: true,
+							writable: true,
+							configurable: true,
+						});
+					} else {
+						map[key] = value;
+					}
+				}
+				return map;
+			}
+			case MAJOR_TAG:
+				// Tags (e.g. dates) are not interpreted, the tagged value is returned as-is
+				this._readLength(info);
+				return this.read();
+			default:
+				return this._readSimple(info);
+		}
+	}
+
+	_readSimple(info) {
+		let value;
+		switch (info) {
+			case 20:
+				return false;
+			case 21:
+				return true;
+			case 22:
+			case 23:
+				return null;
+			case 25:
+				this._ensure(2);
+				value = decodeHalf(this.buffer.readUInt16BE(this.offset));
+				this.offset += 2;
+				return value;
+			case 26:
+				this._ensure(4);
+				value = this.buffer.readFloatBE(this.offset);
+				this.offset += 4;
+				return value;
+			case 27:
+				this._ensure(8);
+				value = this.buffer.readDoubleBE(this.offset);
+				this.offset += 8;
+				return value;
+			default:
+				throw new Error(`Unsupported CBOR simple value: ${info}`);
+		}
+	}
+}
+
+function decodeHalf(half) {
+	const exponent = (half >> 10) & 0x1f;
+	const mantissa = half & 0x3ff;
+	let value;
+	if (exponent === 0) {
+		value = mantissa * Math.pow(2, -24);
+	} else if (exponent === 31) {
+		value = mantissa === 0 ? Infinity : NaN;
+	} else {
+		value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+	}
+	return half & 0x8000 ? -value : value;
+}
+
+module.exports = {
+	// Content type for HTTP requests and responses
+	CONTENT_TYPE: 'application/cbor',
+	// WebSocket subprotocol of connections which exchange CBOR messages
+	PROTOCOL: 'jsonws.cbor',
+
+	/**
+	 * @param {*} value
+	 * @returns {Buffer}
+	 */
+	encode(value) {
+		const encoder = new Encoder();
+		encoder.write(value);
+		return encoder.result();
+	},
+
+	/**
+	 * @param {Buffer} buffer
+	 * @returns {*}
+	 */
+	decode(buffer) {
+		const decoder = new Decoder(buffer);
+		const value = decoder.read();
+		if (decoder.offset !== buffer.length) {
+			throw new Error('Unexpected data after the CBOR value');
+		}
+		return value;
+	},
+};
@@ -4,9 +4,11 @@
 
 'use strict';
 
+const crypto = require('crypto');
 const stream = require('stream');
 
 const jsonrpc = require('./json-rpc');
+const cbor = require('./cbor');
 const BaseTransport = require('./base-transport');
 
 function param(req, name, defaultValue) {
@@ -25,6 +27,78 @@ function param(req, name, defaultValue) {
 	return defaultValue;
 }
 
+// CBOR responses are only sent to clients which explicitly accept them, JSON remains the default
+function acceptsCbor(req) {
+	return req.accepts(['application/json', cbor.CONTENT_TYPE]) === cbor.CONTENT_TYPE;
+}
+
+/**
+ * Encodes a JSON-RPC message in the format negotiated for the request
+ * @param msg
+ * @param context
+ * @returns {{contentType: string, body: (string|Buffer)}}
+ */
+function encodeMessage(msg, context) {
+	return context.http.cbor
+		? { contentType: cbor.CONTENT_TYPE, body: cbor.encode(msg) }
+		: { contentType: 'application/json', body: JSON.stringify(msg) };
+}
+
+/**
+ * Reads and decodes a CBOR request body, unless a body parser has already read it as a buffer
+ * @param req
+ * @param {function} callback (err, body)
+ */
+function readCborBody(req, callback) {
+	const decode = data => {
+		let body;
+		try {
+			body = cbor.decode(data);
+		} catch (err) {
+			callback(err);
+			return;
+		}
+		callback(null, body);
+	};
+
+	if (Buffer.isBuffer(req.body)) {
+		decode(req.body);
+		return;
+	}
+
+	const chunks = [];
+	req.on('data', chunk => chunks.push(chunk));
+	req.on('end', () => decode(Buffer.concat(chunks)));
+	req.on('error', callback);
+}
+
+/**
+ * Sends a response body. GET calls of read-only methods get an ETag, which clients revalidate with
+ * If-None-Match on every call (Cache-Control: no-cache), and unchanged results are answered with 304.
+ * @param body
+ * @param context
+ */
+function sendBody(body, context) {
+	const req = context.http.request;
+	const res = context.http.response;
+	if (context.http.revalidate) {
+		const hash = crypto.createHash('sha1').update(body);
+		const etag = `"${hash.digest('base64')}"`;
+		res.set('ETag', etag);
+		res.set('Cache-Control', 'no-cache');
+		res.set('Vary', 'Accept');
+		const ifNoneMatch = req.get('If-None-Match');
+		if (
+			ifNoneMatch &&
+			ifNoneMatch.split(',').some(tag => tag.trim().replace(/^W\//, '') === etag)
+		) {
+			res.status(304).end();
+			return;
+		}
+	}
+	res.send(body);
+}
+
 class HttpTransport extends BaseTransport {
 	static get type() {
 		return 'HTTP';
@@ -39,11 +113,16 @@ class HttpTransport extends BaseTransport {
 	sendMessage(msg, context, format) {
 		const res = context.http.response;
 		res.set('Access-Control-Allow-Origin', '*');
+		if (msg.serverTiming !== undefined) {
+			res.set('Server-Timing', `exec;dur=${msg.serverTiming}`);
+			delete msg.serverTiming;
+		}
 		let isSent = false;
 		try {
 			if (msg.error) {
-				res.set('Content-Type', 'application/json');
-				res.status(500).send(JSON.stringify(msg));
+				const encoded = encodeMessage(msg, context);
+				res.set('Content-Type', encoded.contentType);
+				res.status(500).send(encoded.body);
 				isSent = true;
 			} else if (msg.id !== undefined && msg.id !== null) {
 				// For now, assume that no format means JSON
@@ -52,17 +131,13 @@ class HttpTransport extends BaseTransport {
 				if (msg.result instanceof stream.Readable) {
 					res.set('Content-Type', format || 'application/octet-stream');
 					msg.result.pipe(res);
+				} else if (format || Buffer.isBuffer(msg.result)) {
+					res.set('Content-Type', format || 'application/octet-stream');
+					sendBody(msg.result, context);
 				} else {
-					const messageData =
-						format || Buffer.isBuffer(msg.result) ? msg.result : JSON.stringify(msg);
-					res.set(
-						'Content-Type',
-						format ||
-							(Buffer.isBuffer(messageData)
-								? 'application/octet-stream'
-								: 'application/json')
-					);
-					res.send(messageData);
+					const encoded = encodeMessage(msg, context);
+					res.set('Content-Type', encoded.contentType);
+					sendBody(encoded.body, context);
 				}
 				isSent = true;
 			}
@@ -109,6 +184,11 @@ class HttpTransport extends BaseTransport {
 				method: methodName,
 			});
 
+			const traceParent = req.get('traceparent');
+			if (traceParent) {
+				json.traceparent = traceParent;
+			}
+
 			const id = param(req, 'id');
 			if (id !== undefined && id !== null) {
 				json.id = id;
@@ -154,6 +234,8 @@ class HttpTransport extends BaseTransport {
 				http: {
 					request: req,
 					response: res,
+					cbor: acceptsCbor(req),
+					revalidate: req.method === 'GET' && !!methodInfo && methodInfo.readOnly,
 				},
 				data: null,
 				params: req.originalParams,
@@ -166,15 +248,15 @@ class HttpTransport extends BaseTransport {
 				(err, data) => {
 					if (err) {
 						this.trace.error(messageContext, methodInfo, err);
-						res.set('Content-Type', 'application/json');
-						res.status(400).end(
-							JSON.stringify(
-								jsonrpc.response(
-									json.id,
-									jsonrpc.error(-32000, 'Bad Request', err.message)
-								)
-							)
+						const encoded = encodeMessage(
+							jsonrpc.response(
+								json.id,
+								jsonrpc.error(-32000, 'Bad Request', err.message)
+							),
+							messageContext
 						);
+						res.set('Content-Type', encoded.contentType);
+						res.status(400).end(encoded.body);
 					} else {
 						messageContext.data = data;
 						this.handleMessage(service, json, messageContext);
@@ -186,8 +268,37 @@ class HttpTransport extends BaseTransport {
 				this.handleMessage(service, json, messageContext);
 			}
 		};
-		this.registry.router.post('/:serviceName/:serviceVersion', restHandler);
-		this.registry.router.all('/:serviceName/:serviceVersion/:methodName', restHandler);
+		// CBOR request bodies are decoded here, the application's body parsers do not handle them
+		const cborBodyHandler = (req, res, next) => {
+			if (!req.is(cbor.CONTENT_TYPE)) {
+				next();
+				return;
+			}
+
+			readCborBody(req, (err, body) => {
+				if (err) {
+					const context = {
+						http: { request: req, response: res, cbor: acceptsCbor(req) },
+					};
+					const encoded = encodeMessage(
+						jsonrpc.response(null, jsonrpc.error(-32700, 'Parse error', err.message)),
+						context
+					);
+					this.trace.error(context, null, err);
+					res.set('Content-Type', encoded.contentType);
+					res.status(400).end(encoded.body);
+					return;
+				}
+				req.body = body;
+				next();
+			});
+		};
+		this.registry.router.post('/:serviceName/:serviceVersion', cborBodyHandler, restHandler);
+		this.registry.router.all(
+			'/:serviceName/:serviceVersion/:methodName',
+			cborBodyHandler,
+			restHandler
+		);
 	}
 }
 
@@ -65,6 +65,22 @@ const jsonrpc = (module.exports = {
 			if (!api.eventMap.hasOwnProperty(eventName)) {
 				return jsonrpc.error(-32601, 'Event not found', AsServiceError(eventName, name));
 			}
+			// An optional filter object follows the event name
+			const filter = req.params[1];
+			if (filter !== undefined && filter !== null) {
+				const filterNames = (api.eventMap[eventName].filters || []).map(f => f.name);
+				const invalidFilter =
+					typeof filter !== 'object' ||
+					Array.isArray(filter) ||
+					Object.keys(filter).some(key => filterNames.indexOf(key) === -1);
+				if (invalidFilter) {
+					return jsonrpc.error(
+						-32602,
+						'Invalid event filter',
+						AsServiceError(`Event ${eventName} can be filtered by: ${filterNames}`, name)
+					);
+				}
+			}
 			return null;
 		}
 
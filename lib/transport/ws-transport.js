@@ -7,11 +7,29 @@
 const stream = require('stream');
 const WebSocket = require('ws');
 const jsonrpc = require('./json-rpc');
+const cbor = require('./cbor');
 const BaseTransport = require('./base-transport');
 const pathToRegExp = require('path-to-regexp');
 
 const WebSocketServer = WebSocket.Server;
 
+// Number of chunks sent ahead of client acknowledgements (rpc.ack) for chunked stream results
+const DEFAULT_CHUNK_WINDOW = 16;
+
+/**
+ * Builds a binary stream chunk frame:
+ * [header length: uint32 BE][header: UTF-8 JSON, e.g. {"id":1,"seq":0}][chunk bytes]
+ * @param {object} header
+ * @param {Buffer} payload
+ * @returns {Buffer}
+ */
+function chunkFrame(header, payload) {
+	const headerBuffer = Buffer.from(JSON.stringify(header));
+	const lengthBuffer = Buffer.alloc(4);
+	lengthBuffer.writeUInt32BE(headerBuffer.length, 0);
+	return Buffer.concat([lengthBuffer, headerBuffer, payload]);
+}
+
 function abortConnection(socket, code, name) {
 	// From here: https://github.com/websockets/ws/blob/9dc7e6b4651711d47bd87bbeddb6446e5aa429e1/lib/WebSocketServer.js#L503
 	try {
@@ -36,6 +54,8 @@ class WebSocketTransport extends BaseTransport {
 		this.httpServer = registry.httpServer;
 		this.wsServer = null;
 		this.connectionContexts = new WeakMap();
+		this.chunkedRequests = new WeakMap(); // connection context -> Map.<request id, stream state>
+		this.cborContexts = new WeakSet(); // connection contexts using the CBOR subprotocol
 		this.nextConnectionId = 0;
 
 		this.registry.httpServer.on('connection', socket => {
@@ -48,6 +68,18 @@ class WebSocketTransport extends BaseTransport {
 		this._setupHandlers();
 	}
 
+	/**
+	 * Encodes a message in the format negotiated for the connection:
+	 * CBOR binary frames for the CBOR subprotocol, JSON text frames otherwise
+	 * @param msg
+	 * @param context
+	 * @returns {string|Buffer}
+	 * @private
+	 */
+	_encode(msg, context) {
+		return this.cborContexts.has(context) ? cbor.encode(msg) : JSON.stringify(msg);
+	}
+
 	sendMessage(msg, context /*, format*/) {
 		if (!(context && context.ws && context.ws.readyState == WebSocket.OPEN)) {
 			return;
@@ -55,27 +87,42 @@ class WebSocketTransport extends BaseTransport {
 
 		if (msg.id !== undefined) {
 			try {
-				if (msg.result && Buffer.isBuffer(msg.result)) {
+				if (msg.result && Buffer.isBuffer(msg.result) && !this.cborContexts.has(context)) {
+					// CBOR carries buffers as byte strings, JSON needs them as base64
 					msg.result = msg.result.toString('base64');
 				}
 
 				if (msg.result && msg.result instanceof stream.Readable) {
-					context.ws.send(
-						JSON.stringify(
-							jsonrpc.response(
-								msg.id,
-								jsonrpc.error(
-									-32000,
-									'WebSocket',
-									'Streaming over WebSockets is not supported'
-								)
+					const chunkedRequests = this.chunkedRequests.get(context);
+					const streamState = chunkedRequests && chunkedRequests.get(msg.id);
+
+					if (streamState) {
+						this._sendChunkedStream(msg.id, msg.result, context, streamState);
+					} else {
+						context.ws.send(
+							this._encode(
+								jsonrpc.response(
+									msg.id,
+									jsonrpc.error(
+										-32000,
+										'WebSocket',
+										'Streaming over WebSockets requires a chunked request'
+									)
+								),
+								context
 							)
-						)
-					);
-					msg.result.destroy();
+						);
+						msg.result.destroy();
+					}
+					return;
+				}
+
+				const chunkedRequests = this.chunkedRequests.get(context);
+				if (chunkedRequests) {
+					chunkedRequests.delete(msg.id);
 				}
 
-				context.ws.send(JSON.stringify(msg));
+				context.ws.send(this._encode(msg, context));
 			} catch (e) {
 				console.log(msg); //eslint-disable-line no-console
 				console.log(e); //eslint-disable-line no-console
@@ -83,6 +130,126 @@ class WebSocketTransport extends BaseTransport {
 		}
 	}
 
+	/**
+	 * Sends a stream result as a sequence of binary chunk frames tagged with the request id,
+	 * terminated by a frame with an "end" header flag. At most streamState.credits chunks are
+	 * sent ahead of the client's rpc.ack messages. Stream errors are sent as JSON-RPC errors.
+	 * CBOR connections get each chunk as a CBOR message { id, seq, chunk } or { id, seq, end }.
+	 * @param id
+	 * @param {stream.Readable} readable
+	 * @param context
+	 * @param streamState
+	 * @private
+	 */
+	_sendChunkedStream(id, readable, context, streamState) {
+		const ws = context.ws;
+		const isCbor = this.cborContexts.has(context);
+		let seq = 0;
+
+		const frame = (header, payload) => {
+			if (!isCbor) {
+				return chunkFrame(header, payload);
+			}
+			if (!header.end) {
+				header.chunk = payload;
+			}
+			return cbor.encode(header);
+		};
+
+		streamState.readable = readable;
+
+		const finish = () => {
+			const chunkedRequests = this.chunkedRequests.get(context);
+			if (chunkedRequests) {
+				chunkedRequests.delete(id);
+			}
+		};
+
+		const send = data => {
+			if (ws.readyState !== WebSocket.OPEN) {
+				finish();
+				readable.destroy();
+				return false;
+			}
+			ws.send(data);
+			return true;
+		};
+
+		readable.on('data', chunk => {
+			const payload = Buffer.isBuffer(chunk) ? chunk : Buffer.from(chunk);
+			if (!send(frame({ id, seq: seq++ }, payload))) {
+				return;
+			}
+			if (--streamState.credits <= 0) {
+				readable.pause();
+			}
+		});
+		readable.on('end', () => {
+			finish();
+			send(frame({ id, seq: seq++, end: true }, Buffer.alloc(0)));
+		});
+		readable.on('error', err => {
+			finish();
+			this.trace.error(context, null, err);
+			send(
+				this._encode(
+					jsonrpc.response(id, jsonrpc.error(-32000, 'Stream error', err.message)),
+					context
+				)
+			);
+		});
+	}
+
+	/**
+	 * Handles an rpc.ack message, granting more chunks to an active chunked stream
+	 * @param context
+	 * @param params [request id, number of consumed chunks]
+	 * @private
+	 */
+	_acknowledgeChunks(context, params) {
+		if (!Array.isArray(params)) {
+			return;
+		}
+
+		const chunkedRequests = this.chunkedRequests.get(context);
+		const streamState = chunkedRequests && chunkedRequests.get(params[0]);
+		const count = Number(params[1]);
+
+		if (!streamState || !(count > 0)) {
+			return;
+		}
+
+		streamState.credits += count;
+		if (streamState.credits > 0 && streamState.readable && streamState.readable.isPaused()) {
+			streamState.readable.resume();
+		}
+	}
+
+	/**
+	 * Handles an rpc.cancel message, sent by clients which stop reading a chunked stream early.
+	 * The stream is destroyed and further acknowledgements for it are ignored.
+	 * @param context
+	 * @param params [request id]
+	 * @private
+	 */
+	_cancelChunkedStream(context, params) {
+		if (!Array.isArray(params)) {
+			return;
+		}
+
+		const chunkedRequests = this.chunkedRequests.get(context);
+		const streamState = chunkedRequests && chunkedRequests.get(params[0]);
+
+		if (!streamState) {
+			return;
+		}
+
+		chunkedRequests.delete(params[0]);
+		if (streamState.readable) {
+			streamState.readable.destroy();
+		}
+	}
+
 	_setupHandlers() {
 		this.httpServer.on('upgrade', (req, socket) => {
 			const serviceAndParams = this._getServiceAndParams(req.url);
@@ -102,6 +269,13 @@ class WebSocketTransport extends BaseTransport {
 		this.wsServer = new WebSocketServer({
 			server: this.httpServer,
 			perMessageDeflate: false, // turn off message compression by default
+			handleProtocols: (protocols, callback) => {
+				// Prefer CBOR when offered, otherwise accept the first protocol like ws does
+				callback(
+					true,
+					protocols.indexOf(cbor.PROTOCOL) !== -1 ? cbor.PROTOCOL : protocols[0]
+				);
+			},
 			verifyClient: (info, callback) => {
 				const connectionContext = this.connectionContexts.get(info.req);
 				if (!connectionContext) {
@@ -151,11 +325,18 @@ class WebSocketTransport extends BaseTransport {
 		connectionCtx.data = connectionContext.data;
 		connectionCtx.params = connectionContext.urlParams;
 
+		const chunkedRequests = new Map();
+		this.chunkedRequests.set(connectionCtx, chunkedRequests);
+		if (ws.protocol === cbor.PROTOCOL) {
+			this.cborContexts.add(connectionCtx);
+		}
+
 		this.onConnect(connectionCtx);
 
 		ws.on('message', message => {
 			try {
-				message = typeof message === 'string' ? JSON.parse(message) : message;
+				// Binary frames are CBOR messages, which clients may send on any connection
+				message = typeof message === 'string' ? JSON.parse(message) : cbor.decode(message);
 			} catch (ex) {
 				// Parse error
 				this.trace.error(connectionCtx, null, ex);
@@ -165,17 +346,37 @@ class WebSocketTransport extends BaseTransport {
 				);
 				return;
 			}
+
+			if (message.method === 'rpc.ack') {
+				this._acknowledgeChunks(connectionCtx, message.params);
+				return;
+			}
+
+			if (message.method === 'rpc.cancel') {
+				this._cancelChunkedStream(connectionCtx, message.params);
+				return;
+			}
+
+			if (message.chunked && message.id !== undefined && message.id !== null) {
+				// The client accepts stream results as chunks, with the given window size
+				const window = parseInt(message.chunked, 10);
+				chunkedRequests.set(message.id, {
+					credits: window > 0 ? window : DEFAULT_CHUNK_WINDOW,
+					readable: null,
+				});
+			}
 			const continueImmediately = this.validateMessage(
 				connectionContext.service,
 				message.method,
 				connectionContext.urlParams,
 				(err, data) => {
 					if (err) {
-						ws.send(
+						this.sendMessage(
 							jsonrpc.response(
 								message.id,
 								jsonrpc.error(-32000, 'Bad Request', err.message)
-							)
+							),
+							connectionCtx
 						);
 					} else {
 						connectionCtx.data = data; // Update with the latest data from the validator.
@@ -190,10 +391,16 @@ class WebSocketTransport extends BaseTransport {
 		});
 
 		ws.on('close', () => {
+			for (const streamState of chunkedRequests.values()) {
+				if (streamState.readable) {
+					streamState.readable.destroy();
+				}
+			}
+			chunkedRequests.clear();
 			this.onDisconnect(connectionCtx);
 		});
 
-		ws.send('{}');
+		ws.send(this._encode({}, connectionCtx));
 	}
 
 	/**
@@ -0,0 +1,467 @@
+package com.chaosgroup.jsonws.stubs;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 7049) encoding of JSON-RPC messages, negotiated with the server as an alternative to JSON.
+ * Byte arrays are carried as CBOR byte strings instead of base64 strings.
+ */
+final class Cbor {
+
+	static final String CONTENT_TYPE = "application/cbor";
+	static final String PROTOCOL = "jsonws.cbor";
+
+	private static final int MAJOR_UNSIGNED = 0;
+	private static final int MAJOR_NEGATIVE = 1;
+	private static final int MAJOR_BYTES = 2;
+	private static final int MAJOR_TEXT = 3;
+	private static final int MAJOR_ARRAY = 4;
+	private static final int MAJOR_MAP = 5;
+	private static final int MAJOR_TAG = 6;
+	private static final int INDEFINITE_LENGTH = 31;
+	private static final int BREAK = 0xff;
+
+	private Cbor() {
+	}
+
+	/**
+	 * A JsonWriter which writes CBOR, so that Gson type adapters serialize directly to CBOR.
+	 * Arrays and objects are written with indefinite lengths, as their sizes are not known up front.
+	 */
+	static final class Writer extends JsonWriter {
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private String pendingName;
+
+		Writer() {
+			super(new StringWriter());
+		}
+
+		byte[] toByteArray() {
+			return output.toByteArray();
+		}
+
+		private void writeHead(int major, long length) {
+			if (length < 24) {
+				output.write(major << 5 | (int) length);
+			} else if (length < 0x100) {
+				output.write(major << 5 | 24);
+				output.write((int) length);
+			} else if (length < 0x10000) {
+				output.write(major << 5 | 25);
+				writeBigEndian(length, 2);
+			} else if (length < 0x100000000L) {
+				output.write(major << 5 | 26);
+				writeBigEndian(length, 4);
+			} else {
+				output.write(major << 5 | 27);
+				writeBigEndian(length, 8);
+			}
+		}
+
+		private void writeBigEndian(long value, int byteCount) {
+			for (int shift = (byteCount - 1) * 8; shift >= 0; shift -= 8) {
+				output.write((int) (value >>> shift) & 0xff);
+			}
+		}
+
+		private void writeText(String text) {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			writeHead(MAJOR_TEXT, bytes.length);
+			output.write(bytes, 0, bytes.length);
+		}
+
+		// Object member names are deferred until their value is written, as null members may be skipped
+		private void beforeValue() {
+			if (pendingName != null) {
+				writeText(pendingName);
+				pendingName = null;
+			}
+		}
+
+		@Override
+		public Writer beginArray() {
+			beforeValue();
+			output.write(MAJOR_ARRAY << 5 | INDEFINITE_LENGTH);
+			return this;
+		}
+
+		@Override
+		public Writer endArray() {
+			output.write(BREAK);
+			return this;
+		}
+
+		@Override
+		public Writer beginObject() {
+			beforeValue();
+			output.write(MAJOR_MAP << 5 | INDEFINITE_LENGTH);
+			return this;
+		}
+
+		@Override
+		public Writer endObject() {
+			output.write(BREAK);
+			return this;
+		}
+
+		@Override
+		public Writer name(String name) {
+			pendingName = name;
+			return this;
+		}
+
+		@Override
+		public Writer value(String value) {
+			if (value == null) {
+				return nullValue();
+			}
+			beforeValue();
+			writeText(value);
+			return this;
+		}
+
+		Writer value(byte[] value) {
+			if (value == null) {
+				return nullValue();
+			}
+			beforeValue();
+			writeHead(MAJOR_BYTES, value.length);
+			output.write(value, 0, value.length);
+			return this;
+		}
+
+		// jsonValue, value(Boolean) and value(float) only exist in newer Gson versions, where they must be overridden
+		public Writer jsonValue(String value) {
+			if (value == null) {
+				return nullValue();
+			}
+			// Raw JSON is parsed, so that it is written as CBOR values instead of a text string
+			RpcTunnel.gson.toJson(new JsonParser().parse(value), this);
+			return this;
+		}
+
+		@Override
+		public Writer nullValue() {
+			if (pendingName != null && !getSerializeNulls()) {
+				pendingName = null;
+				return this;
+			}
+			beforeValue();
+			output.write(0xf6);
+			return this;
+		}
+
+		@Override
+		public Writer value(boolean value) {
+			beforeValue();
+			output.write(value ? 0xf5 : 0xf4);
+			return this;
+		}
+
+		public Writer value(Boolean value) {
+			return value == null ? nullValue() : value(value.booleanValue());
+		}
+
+		public Writer value(float value) {
+			return value((double) value);
+		}
+
+		@Override
+		public Writer value(double value) {
+			beforeValue();
+			output.write(0xfb);
+			writeBigEndian(Double.doubleToLongBits(value), 8);
+			return this;
+		}
+
+		@Override
+		public Writer value(long value) {
+			beforeValue();
+			if (value >= 0) {
+				writeHead(MAJOR_UNSIGNED, value);
+			} else {
+				writeHead(MAJOR_NEGATIVE, -1 - value);
+			}
+			return this;
+		}
+
+		@Override
+		public Writer value(Number value) {
+			if (value == null) {
+				return nullValue();
+			}
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return value(value.longValue());
+			}
+			if (!(value instanceof Double) && !(value instanceof Float)) {
+				// Numbers parsed by Gson keep their text, integers among them stay integers
+				try {
+					return value(Long.parseLong(value.toString()));
+				} catch (NumberFormatException notAnInteger) {
+					// Written as a double below
+				}
+			}
+			return value(value.doubleValue());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Serializes byte arrays as CBOR byte strings, or as base64 strings in JSON.
+	 * Reads base64 strings, which is how decoded CBOR byte strings appear in JSON trees, and arrays of numbers.
+	 */
+	static final class ByteArrayTypeAdapter extends TypeAdapter<byte[]> {
+		@Override
+		public void write(JsonWriter out, byte[] value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+			} else if (out instanceof Writer) {
+				((Writer) out).value(value);
+			} else {
+				out.value(Base64.getEncoder().encodeToString(value));
+			}
+		}
+
+		@Override
+		public byte[] read(JsonReader in) throws IOException {
+			JsonToken token = in.peek();
+			if (token == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			if (token == JsonToken.STRING) {
+				return Base64.getDecoder().decode(in.nextString());
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			in.beginArray();
+			while (in.hasNext()) {
+				bytes.write(in.nextInt());
+			}
+			in.endArray();
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Decodes a CBOR value to Maps, Lists, Strings, Longs, Doubles, Booleans, byte arrays and nulls
+	 */
+	static Object decode(ByteBuffer buffer) throws IOException {
+		try {
+			return readValue(buffer);
+		} catch (RuntimeException e) {
+			// Malformed data must not escape as an unchecked exception on the connection's reader thread
+			throw new IOException("Invalid CBOR data", e);
+		}
+	}
+
+	/**
+	 * Returns the event name of CBOR event messages, which the server starts with a string id,
+	 * without decoding the event data. Returns null for all other messages.
+	 */
+	static String peekEventId(ByteBuffer buffer) {
+		ByteBuffer peekBuffer = buffer.duplicate();
+		try {
+			int head = peekBuffer.get() & 0xff;
+			if (head >> 5 != MAJOR_MAP || readLength(peekBuffer, head & 0x1f) == 0) {
+				return null;
+			}
+			if (!"id".equals(readValue(peekBuffer))) {
+				return null;
+			}
+			Object id = readValue(peekBuffer);
+			return id instanceof String ? (String) id : null;
+		} catch (RuntimeException e) {
+			// Malformed messages are reported when they are decoded in full
+			return null;
+		}
+	}
+
+	/**
+	 * Converts a decoded value to a Gson tree; byte arrays become base64 strings
+	 */
+	static JsonElement toJsonElement(Object value) {
+		if (value == null) {
+			return JsonNull.INSTANCE;
+		} else if (value instanceof String) {
+			return new JsonPrimitive((String) value);
+		} else if (value instanceof Number) {
+			return new JsonPrimitive((Number) value);
+		} else if (value instanceof Boolean) {
+			return new JsonPrimitive((Boolean) value);
+		} else if (value instanceof byte[]) {
+			return new JsonPrimitive(Base64.getEncoder().encodeToString((byte[]) value));
+		} else if (value instanceof List) {
+			JsonArray array = new JsonArray();
+			for (Object item : (List<?>) value) {
+				array.add(toJsonElement(item));
+			}
+			return array;
+		} else {
+			JsonObject object = new JsonObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				object.add(String.valueOf(entry.getKey()), toJsonElement(entry.getValue()));
+			}
+			return object;
+		}
+	}
+
+	private static long readLength(ByteBuffer buffer, int info) {
+		if (info < 24) {
+			return info;
+		}
+		switch (info) {
+			case 24:
+				return buffer.get() & 0xffL;
+			case 25:
+				return buffer.getShort() & 0xffffL;
+			case 26:
+				return buffer.getInt() & 0xffffffffL;
+			case 27: {
+				long length = buffer.getLong();
+				if (length < 0) {
+					throw new IllegalArgumentException("CBOR value too large: " + Long.toUnsignedString(length));
+				}
+				return length;
+			}
+			case INDEFINITE_LENGTH:
+				return -1;
+			default:
+				throw new IllegalArgumentException("Invalid CBOR length encoding: " + info);
+		}
+	}
+
+	private static boolean isBreak(ByteBuffer buffer) {
+		if (!buffer.hasRemaining()) {
+			throw new BufferUnderflowException();
+		}
+		if ((buffer.get(buffer.position()) & 0xff) == BREAK) {
+			buffer.get();
+			return true;
+		}
+		return false;
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer, int major, long length) {
+		if (length == -1) {
+			// Indefinite length strings are sequences of definite length chunks
+			ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+			while (!isBreak(buffer)) {
+				int head = buffer.get() & 0xff;
+				if (head >> 5 != major) {
+					throw new IllegalArgumentException("Invalid CBOR string chunk");
+				}
+				byte[] chunk = readBytes(buffer, major, readLength(buffer, head & 0x1f));
+				chunks.write(chunk, 0, chunk.length);
+			}
+			return chunks.toByteArray();
+		}
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[(int) length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static Object readValue(ByteBuffer buffer) {
+		int head = buffer.get() & 0xff;
+		int major = head >> 5;
+		int info = head & 0x1f;
+
+		switch (major) {
+			case MAJOR_UNSIGNED:
+				return readLength(buffer, info);
+			case MAJOR_NEGATIVE:
+				return -1 - readLength(buffer, info);
+			case MAJOR_BYTES:
+				return readBytes(buffer, major, readLength(buffer, info));
+			case MAJOR_TEXT:
+				return new String(readBytes(buffer, major, readLength(buffer, info)), StandardCharsets.UTF_8);
+			case MAJOR_ARRAY: {
+				long length = readLength(buffer, info);
+				List<Object> array = new ArrayList<>();
+				while (length == -1 ? !isBreak(buffer) : array.size() < length) {
+					array.add(readValue(buffer));
+				}
+				return array;
+			}
+			case MAJOR_MAP: {
+				long length = readLength(buffer, info);
+				Map<String, Object> map = new LinkedHashMap<>();
+				for (long i = 0; length == -1 ? !isBreak(buffer) : i < length; i++) {
+					String key = String.valueOf(readValue(buffer));
+					map.put(key, readValue(buffer));
+				}
+				return map;
+			}
+			case MAJOR_TAG:
+				// Tags are not interpreted, the tagged value is returned as-is
+				readLength(buffer, info);
+				return readValue(buffer);
+			default:
+				return readSimpleValue(buffer, info);
+		}
+	}
+
+	private static Object readSimpleValue(ByteBuffer buffer, int info) {
+		switch (info) {
+			case 20:
+				return false;
+			case 21:
+				return true;
+			case 22:
+			case 23:
+				return null;
+			case 25:
+				return (double) halfToFloat(buffer.getShort() & 0xffff);
+			case 26:
+				return (double) buffer.getFloat();
+			case 27:
+				return buffer.getDouble();
+			default:
+				throw new IllegalArgumentException("Unsupported CBOR simple value: " + info);
+		}
+	}
+
+	private static float halfToFloat(int half) {
+		int exponent = (half >> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		float value;
+		if (exponent == 0) {
+			value = mantissa * (float) Math.pow(2, -24);
+		} else if (exponent == 31) {
+			value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+		} else {
+			value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+		}
+		return (half & 0x8000) != 0 ? -value : value;
+	}
+}
@@ -1,7 +1,7 @@
 /**
  * Test API 1.0
  *
- * Part of the JSON-WS library - Java 1.7 Proxy
+ * Part of the JSON-WS library - Java 9 Proxy
  * Copyright (c) 2013-2014 ChaosGroup. All rights reserved.
  *
  * This code uses the following libraries
@@ -33,7 +33,56 @@ public class GeneratedTest implements AutoCloseable {
 	 * @throws java.net.URISyntaxException
 	 */
 	public GeneratedTest(String url) throws MalformedURLException, URISyntaxException {
-		rpcTunnel = new RpcTunnel(url, rpcEventHandler);
+		this(url, null);
+	}
+
+	/**
+	 * Constructs a new proxy using the specified URL, sharing connections and threads through the given runtime
+	 * @param url Full URL of the web service endpoint.
+	 * @param runtime Runtime shared with other proxies, or null to use a runtime owned by this proxy.
+	 * @throws java.net.MalformedURLException
+	 * @throws java.net.URISyntaxException
+	 */
+	public GeneratedTest(String url, RpcRuntime runtime) throws MalformedURLException, URISyntaxException {
+		rpcTunnel = runtime == null
+				? new RpcTunnel(url, rpcEventHandler)
+				: new RpcTunnel(url, rpcEventHandler, runtime);
+		testEventPublisher = new EventPublisher<Long>(rpcTunnel, TestEventHandler.Name) {
+			@Override
+			protected Long convert(JsonElement eventData) {
+				return (Long) RpcTunnel.gson.fromJson(eventData, Long.class);
+			}
+		};
+		testEvent2Publisher = new EventPublisher<RenderOptions[]>(rpcTunnel, TestEvent2Handler.Name) {
+			@Override
+			protected RenderOptions[] convert(JsonElement eventData) {
+				return (RenderOptions[]) RpcTunnel.gson.fromJson(eventData, RenderOptions[].class);
+			}
+		};
+		testEvent3Publisher = new EventPublisher<JsonObject>(rpcTunnel, TestEvent3Handler.Name) {
+			@Override
+			protected JsonObject convert(JsonElement eventData) {
+				return eventData.getAsJsonObject();
+			}
+		};
+		testEvent4Publisher = new EventPublisher<Boolean>(rpcTunnel, TestEvent4Handler.Name) {
+			@Override
+			protected Boolean convert(JsonElement eventData) {
+				return eventData.getAsBoolean();
+			}
+		};
+		testBinaryEventPublisher = new EventPublisher<byte[]>(rpcTunnel, TestBinaryEventHandler.Name) {
+			@Override
+			protected byte[] convert(JsonElement eventData) {
+				return (byte[]) RpcTunnel.gson.fromJson(eventData, byte[].class);
+			}
+		};
+		ns1_testEvent1Publisher = new EventPublisher<String>(rpcTunnel, Ns1_testEvent1Handler.Name) {
+			@Override
+			protected String convert(JsonElement eventData) {
+				return Ns1_testEvent1Handler.Name;
+			}
+		};
 	}
 
 	/**
@@ -52,120 +101,425 @@ public class GeneratedTest implements AutoCloseable {
 		return this;
 	}
 
+	/**
+	 * Sets the default transport mechanism to HTTP/2, which multiplexes concurrent calls over one connection.
+	 * Plain http:// endpoints are upgraded to HTTP/2 (h2c) if the server supports it.
+	 * Requires Java 11, while the other transports run on Java 9.
+	 */
+	public GeneratedTest useHTTP2() {
+		defaultTransport = RpcTunnel.Transport.HTTP2;
+		return this;
+	}
+
+	/**
+	 * Exchanges messages with the server as JSON, which is the default.
+	 * Only applies to the WebSocket connection if it has not been opened yet.
+	 */
+	public GeneratedTest useJSON() {
+		rpcTunnel.setEncoding(RpcTunnel.Encoding.JSON);
+		return this;
+	}
+
+	/**
+	 * Exchanges messages with the server as CBOR, which carries byte arrays without base64 encoding.
+	 * Only applies to the WebSocket connection if it has not been opened yet.
+	 */
+	public GeneratedTest useCBOR() {
+		rpcTunnel.setEncoding(RpcTunnel.Encoding.CBOR);
+		return this;
+	}
+
+	/**
+	 * Continues the caller's W3C trace in the following calls, which are sent as child spans of the given traceparent.
+	 * Without one, each call starts a new trace.
+	 * @param traceParent A traceparent header value, e.g. of the request being handled, or null
+	 */
+	public GeneratedTest setTraceParent(String traceParent) {
+		rpcTunnel.setTraceParent(traceParent);
+		return this;
+	}
+
+	/**
+	 * Sets the priority of a method's calls over WebSocket. Calls are NORMAL by default;
+	 * BULK calls are held back while the connection is sending earlier data.
+	 * @param method Full name of the method, e.g. "ns.method"
+	 */
+	public GeneratedTest setPriority(String method, RpcTunnel.Priority priority) {
+		rpcTunnel.setPriority(method, priority);
+		return this;
+	}
+
+	/**
+	 * Sends BULK calls over a separate WebSocket connection, so that they do not hold up other calls
+	 */
+	public GeneratedTest useBulkConnection() {
+		rpcTunnel.useBulkConnection();
+		return this;
+	}
+
+	/**
+	 * Opens the WebSocket connection and preloads the JSON codecs of the service types ahead of their first use.
+	 * Otherwise connections are only opened when a transport is first used.
+	 * @throws java.lang.InterruptedException
+	 * @throws java.util.concurrent.ExecutionException If the WebSocket connection fails
+	 */
+	public GeneratedTest warmUp() throws InterruptedException, java.util.concurrent.ExecutionException {
+		rpcTunnel.warmUp();
+		RpcTunnel.gson.getAdapter(RenderMode.class);
+		RpcTunnel.gson.getAdapter(RenderOptions.class);
+		RpcTunnel.gson.getAdapter(DefaultArray.class);
+		return this;
+	}
+
 	@Override
 	public void close() throws Exception {
+		if (testEventConflator != null) {
+			testEventConflator.close();
+		}
+		if (testEvent2Conflator != null) {
+			testEvent2Conflator.close();
+		}
+		if (testEvent3Conflator != null) {
+			testEvent3Conflator.close();
+		}
+		if (testEvent4Conflator != null) {
+			testEvent4Conflator.close();
+		}
+		if (testBinaryEventConflator != null) {
+			testBinaryEventConflator.close();
+		}
+		if (ns1_testEvent1Conflator != null) {
+			ns1_testEvent1Conflator.close();
+		}
+		testEventPublisher.complete();
+		testEvent2Publisher.complete();
+		testEvent3Publisher.complete();
+		testEvent4Publisher.complete();
+		testBinaryEventPublisher.complete();
+		ns1_testEvent1Publisher.complete();
 		rpcTunnel.close();
 	}
 
-	private TestEventHandler testEventHandler;
+	private volatile TestEventHandler testEventHandler;
+	private volatile EventConflator testEventConflator;
 	public interface TestEventHandler {
 		public static final String Name = "testEvent";
 		void onTestEvent(Long data);
 	}
 	public void onTestEvent(TestEventHandler eventHandler) {
+		onTestEvent(eventHandler, null);
+	}
+	/**
+	 * Sets the testEvent handler. With a conflation mode only the newest event is delivered, on the runtime's event thread;
+	 * without one every event is delivered on the WebSocket thread.
+	 */
+	public synchronized void onTestEvent(final TestEventHandler eventHandler, RpcTunnel.Conflation conflation) {
+		TestEventHandler previousHandler = testEventHandler;
+		if (testEventConflator != null) {
+			testEventConflator.close();
+		}
+		testEventConflator = eventHandler == null || conflation == null ? null : new EventConflator(rpcTunnel, conflation) {
+			@Override
+			void deliver(RpcTunnel.EventPayload event) {
+				eventHandler.onTestEvent((Long) RpcTunnel.gson.fromJson(event.get(), Long.class));
+			}
+		};
 		testEventHandler = eventHandler;
-		rpcTunnel.call(testEventHandler == null ? "rpc.off" : "rpc.on",
-				new Object[] { TestEventHandler.Name }, false, RpcTunnel.Transport.WebSocket);
+		if (previousHandler == null && eventHandler != null) {
+			rpcTunnel.subscribe(TestEventHandler.Name);
+		} else if (previousHandler != null && eventHandler == null) {
+			rpcTunnel.unsubscribe(TestEventHandler.Name);
+		}
 	}
 
-	private TestEvent2Handler testEvent2Handler;
+	private EventPublisher<Long> testEventPublisher;
+	/**
+	 * Returns a Flow.Publisher of testEvent events which honors subscriber demand.
+	 */
+	public EventPublisher<Long> testEventPublisher() {
+		return testEventPublisher;
+	}
+
+	private volatile TestEvent2Handler testEvent2Handler;
+	private volatile EventConflator testEvent2Conflator;
 	public interface TestEvent2Handler {
 		public static final String Name = "testEvent2";
 		void onTestEvent2(RenderOptions[] data);
 	}
 	public void onTestEvent2(TestEvent2Handler eventHandler) {
+		onTestEvent2(eventHandler, null);
+	}
+	/**
+	 * Sets the testEvent2 handler. With a conflation mode only the newest event is delivered, on the runtime's event thread;
+	 * without one every event is delivered on the WebSocket thread.
+	 */
+	public synchronized void onTestEvent2(final TestEvent2Handler eventHandler, RpcTunnel.Conflation conflation) {
+		TestEvent2Handler previousHandler = testEvent2Handler;
+		if (testEvent2Conflator != null) {
+			testEvent2Conflator.close();
+		}
+		testEvent2Conflator = eventHandler == null || conflation == null ? null : new EventConflator(rpcTunnel, conflation) {
+			@Override
+			void deliver(RpcTunnel.EventPayload event) {
+				eventHandler.onTestEvent2((RenderOptions[]) RpcTunnel.gson.fromJson(event.get(), RenderOptions[].class));
+			}
+		};
 		testEvent2Handler = eventHandler;
-		rpcTunnel.call(testEvent2Handler == null ? "rpc.off" : "rpc.on",
-				new Object[] { TestEvent2Handler.Name }, false, RpcTunnel.Transport.WebSocket);
+		if (previousHandler == null && eventHandler != null) {
+			rpcTunnel.subscribe(TestEvent2Handler.Name);
+		} else if (previousHandler != null && eventHandler == null) {
+			rpcTunnel.unsubscribe(TestEvent2Handler.Name);
+		}
 	}
 
-	private TestEvent3Handler testEvent3Handler;
+	private EventPublisher<RenderOptions[]> testEvent2Publisher;
+	/**
+	 * Returns a Flow.Publisher of testEvent2 events which honors subscriber demand.
+	 */
+	public EventPublisher<RenderOptions[]> testEvent2Publisher() {
+		return testEvent2Publisher;
+	}
+
+	private volatile TestEvent3Handler testEvent3Handler;
+	private volatile EventConflator testEvent3Conflator;
 	public interface TestEvent3Handler {
 		public static final String Name = "testEvent3";
 		void onTestEvent3(JsonObject data);
 	}
 	public void onTestEvent3(TestEvent3Handler eventHandler) {
+		onTestEvent3(eventHandler, null);
+	}
+	/**
+	 * Sets the testEvent3 handler. With a conflation mode only the newest event is delivered, on the runtime's event thread;
+	 * without one every event is delivered on the WebSocket thread.
+	 */
+	public synchronized void onTestEvent3(final TestEvent3Handler eventHandler, RpcTunnel.Conflation conflation) {
+		TestEvent3Handler previousHandler = testEvent3Handler;
+		if (testEvent3Conflator != null) {
+			testEvent3Conflator.close();
+		}
+		testEvent3Conflator = eventHandler == null || conflation == null ? null : new EventConflator(rpcTunnel, conflation) {
+			@Override
+			void deliver(RpcTunnel.EventPayload event) {
+				eventHandler.onTestEvent3(event.get().getAsJsonObject());
+			}
+		};
 		testEvent3Handler = eventHandler;
-		rpcTunnel.call(testEvent3Handler == null ? "rpc.off" : "rpc.on",
-				new Object[] { TestEvent3Handler.Name }, false, RpcTunnel.Transport.WebSocket);
+		if (previousHandler == null && eventHandler != null) {
+			rpcTunnel.subscribe(TestEvent3Handler.Name);
+		} else if (previousHandler != null && eventHandler == null) {
+			rpcTunnel.unsubscribe(TestEvent3Handler.Name);
+		}
 	}
 
-	private TestEvent4Handler testEvent4Handler;
+	private EventPublisher<JsonObject> testEvent3Publisher;
+	/**
+	 * Returns a Flow.Publisher of testEvent3 events which honors subscriber demand.
+	 */
+	public EventPublisher<JsonObject> testEvent3Publisher() {
+		return testEvent3Publisher;
+	}
+
+	private volatile TestEvent4Handler testEvent4Handler;
+	private volatile EventConflator testEvent4Conflator;
 	public interface TestEvent4Handler {
 		public static final String Name = "testEvent4";
 		void onTestEvent4(Boolean data);
 	}
 	public void onTestEvent4(TestEvent4Handler eventHandler) {
+		onTestEvent4(eventHandler, null);
+	}
+	/**
+	 * Sets the testEvent4 handler. With a conflation mode only the newest event is delivered, on the runtime's event thread;
+	 * without one every event is delivered on the WebSocket thread.
+	 */
+	public synchronized void onTestEvent4(final TestEvent4Handler eventHandler, RpcTunnel.Conflation conflation) {
+		TestEvent4Handler previousHandler = testEvent4Handler;
+		if (testEvent4Conflator != null) {
+			testEvent4Conflator.close();
+		}
+		testEvent4Conflator = eventHandler == null || conflation == null ? null : new EventConflator(rpcTunnel, conflation) {
+			@Override
+			void deliver(RpcTunnel.EventPayload event) {
+				eventHandler.onTestEvent4(event.get().getAsBoolean());
+			}
+		};
 		testEvent4Handler = eventHandler;
-		rpcTunnel.call(testEvent4Handler == null ? "rpc.off" : "rpc.on",
-				new Object[] { TestEvent4Handler.Name }, false, RpcTunnel.Transport.WebSocket);
+		if (previousHandler == null && eventHandler != null) {
+			rpcTunnel.subscribe(TestEvent4Handler.Name);
+		} else if (previousHandler != null && eventHandler == null) {
+			rpcTunnel.unsubscribe(TestEvent4Handler.Name);
+		}
+	}
+
+	private EventPublisher<Boolean> testEvent4Publisher;
+	/**
+	 * Returns a Flow.Publisher of testEvent4 events which honors subscriber demand.
+	 */
+	public EventPublisher<Boolean> testEvent4Publisher() {
+		return testEvent4Publisher;
 	}
 
-	private TestBinaryEventHandler testBinaryEventHandler;
+	private volatile TestBinaryEventHandler testBinaryEventHandler;
+	private volatile EventConflator testBinaryEventConflator;
 	public interface TestBinaryEventHandler {
 		public static final String Name = "testBinaryEvent";
 		void onTestBinaryEvent(byte[] data);
 	}
 	public void onTestBinaryEvent(TestBinaryEventHandler eventHandler) {
+		onTestBinaryEvent(eventHandler, null);
+	}
+	/**
+	 * Sets the testBinaryEvent handler. With a conflation mode only the newest event is delivered, on the runtime's event thread;
+	 * without one every event is delivered on the WebSocket thread.
+	 */
+	public synchronized void onTestBinaryEvent(final TestBinaryEventHandler eventHandler, RpcTunnel.Conflation conflation) {
+		TestBinaryEventHandler previousHandler = testBinaryEventHandler;
+		if (testBinaryEventConflator != null) {
+			testBinaryEventConflator.close();
+		}
+		testBinaryEventConflator = eventHandler == null || conflation == null ? null : new EventConflator(rpcTunnel, conflation) {
+			@Override
+			void deliver(RpcTunnel.EventPayload event) {
+				eventHandler.onTestBinaryEvent((byte[]) RpcTunnel.gson.fromJson(event.get(), byte[].class));
+			}
+		};
 		testBinaryEventHandler = eventHandler;
-		rpcTunnel.call(testBinaryEventHandler == null ? "rpc.off" : "rpc.on",
-				new Object[] { TestBinaryEventHandler.Name }, false, RpcTunnel.Transport.WebSocket);
+		if (previousHandler == null && eventHandler != null) {
+			rpcTunnel.subscribe(TestBinaryEventHandler.Name);
+		} else if (previousHandler != null && eventHandler == null) {
+			rpcTunnel.unsubscribe(TestBinaryEventHandler.Name);
+		}
+	}
+
+	private EventPublisher<byte[]> testBinaryEventPublisher;
+	/**
+	 * Returns a Flow.Publisher of testBinaryEvent events which honors subscriber demand.
+	 */
+	public EventPublisher<byte[]> testBinaryEventPublisher() {
+		return testBinaryEventPublisher;
 	}
 
-	private Ns1_testEvent1Handler ns1_testEvent1Handler;
+	private volatile Ns1_testEvent1Handler ns1_testEvent1Handler;
+	private volatile EventConflator ns1_testEvent1Conflator;
 	public interface Ns1_testEvent1Handler {
 		public static final String Name = "ns1.testEvent1";
 		void onNs1_testEvent1();
 	}
 	public void onNs1_testEvent1(Ns1_testEvent1Handler eventHandler) {
+		onNs1_testEvent1(eventHandler, null);
+	}
+	/**
+	 * Sets the ns1.testEvent1 handler. With a conflation mode only the newest event is delivered, on the runtime's event thread;
+	 * without one every event is delivered on the WebSocket thread.
+	 */
+	public synchronized void onNs1_testEvent1(final Ns1_testEvent1Handler eventHandler, RpcTunnel.Conflation conflation) {
+		Ns1_testEvent1Handler previousHandler = ns1_testEvent1Handler;
+		if (ns1_testEvent1Conflator != null) {
+			ns1_testEvent1Conflator.close();
+		}
+		ns1_testEvent1Conflator = eventHandler == null || conflation == null ? null : new EventConflator(rpcTunnel, conflation) {
+			@Override
+			void deliver(RpcTunnel.EventPayload event) {
+				eventHandler.onNs1_testEvent1();
+			}
+		};
 		ns1_testEvent1Handler = eventHandler;
-		rpcTunnel.call(ns1_testEvent1Handler == null ? "rpc.off" : "rpc.on",
-				new Object[] { Ns1_testEvent1Handler.Name }, false, RpcTunnel.Transport.WebSocket);
+		if (previousHandler == null && eventHandler != null) {
+			rpcTunnel.subscribe(Ns1_testEvent1Handler.Name);
+		} else if (previousHandler != null && eventHandler == null) {
+			rpcTunnel.unsubscribe(Ns1_testEvent1Handler.Name);
+		}
 	}
 
+	private EventPublisher<String> ns1_testEvent1Publisher;
+	/**
+	 * Returns a Flow.Publisher of ns1.testEvent1 events which honors subscriber demand.
+	 * Events without data are delivered as the event name.
+	 */
+	public EventPublisher<String> ns1_testEvent1Publisher() {
+		return ns1_testEvent1Publisher;
+	}
 
+	
 	@SuppressWarnings("FieldCanBeLocal")
 	private final RpcTunnel.EventHandler rpcEventHandler = new RpcTunnel.EventHandler() {
 		@Override
-		public void onEvent(String eventId, JsonElement eventData) {
+		public void onEvent(String eventId, RpcTunnel.EventPayload event) {
 			switch (eventId) {
-
-				case TestEventHandler.Name:
-					if (testEventHandler != null) {
-						testEventHandler.onTestEvent((Long) new Gson().fromJson(eventData, Long.class));
+	
+				case TestEventHandler.Name: {
+					EventConflator conflator = testEventConflator;
+					TestEventHandler handler = testEventHandler;
+					if (conflator != null) {
+						conflator.offer(event);
+					} else if (handler != null) {
+						handler.onTestEvent((Long) RpcTunnel.gson.fromJson(event.get(), Long.class));
 					}
+					testEventPublisher.publish(event);
 					break;
-
-				case TestEvent2Handler.Name:
-					if (testEvent2Handler != null) {
-						testEvent2Handler.onTestEvent2((RenderOptions[]) new Gson().fromJson(eventData, RenderOptions[].class));
+				}
+	
+				case TestEvent2Handler.Name: {
+					EventConflator conflator = testEvent2Conflator;
+					TestEvent2Handler handler = testEvent2Handler;
+					if (conflator != null) {
+						conflator.offer(event);
+					} else if (handler != null) {
+						handler.onTestEvent2((RenderOptions[]) RpcTunnel.gson.fromJson(event.get(), RenderOptions[].class));
 					}
+					testEvent2Publisher.publish(event);
 					break;
-
-				case TestEvent3Handler.Name:
-					if (testEvent3Handler != null) {
-						testEvent3Handler.onTestEvent3(eventData.getAsJsonObject());
+				}
+	
+				case TestEvent3Handler.Name: {
+					EventConflator conflator = testEvent3Conflator;
+					TestEvent3Handler handler = testEvent3Handler;
+					if (conflator != null) {
+						conflator.offer(event);
+					} else if (handler != null) {
+						handler.onTestEvent3(event.get().getAsJsonObject());
 					}
+					testEvent3Publisher.publish(event);
 					break;
-
-				case TestEvent4Handler.Name:
-					if (testEvent4Handler != null) {
-						testEvent4Handler.onTestEvent4(eventData.getAsBoolean());
+				}
+	
+				case TestEvent4Handler.Name: {
+					EventConflator conflator = testEvent4Conflator;
+					TestEvent4Handler handler = testEvent4Handler;
+					if (conflator != null) {
+						conflator.offer(event);
+					} else if (handler != null) {
+						handler.onTestEvent4(event.get().getAsBoolean());
 					}
+					testEvent4Publisher.publish(event);
 					break;
-
-				case TestBinaryEventHandler.Name:
-					if (testBinaryEventHandler != null) {
-						testBinaryEventHandler.onTestBinaryEvent(javax.xml.bind.DatatypeConverter.parseBase64Binary(eventData.getAsString()));
+				}
+	
+				case TestBinaryEventHandler.Name: {
+					EventConflator conflator = testBinaryEventConflator;
+					TestBinaryEventHandler handler = testBinaryEventHandler;
+					if (conflator != null) {
+						conflator.offer(event);
+					} else if (handler != null) {
+						handler.onTestBinaryEvent((byte[]) RpcTunnel.gson.fromJson(event.get(), byte[].class));
 					}
+					testBinaryEventPublisher.publish(event);
 					break;
-
-				case Ns1_testEvent1Handler.Name:
-					if (ns1_testEvent1Handler != null) {
-						ns1_testEvent1Handler.onNs1_testEvent1();
+				}
+	
+				case Ns1_testEvent1Handler.Name: {
+					EventConflator conflator = ns1_testEvent1Conflator;
+					Ns1_testEvent1Handler handler = ns1_testEvent1Handler;
+					if (conflator != null) {
+						conflator.offer(event);
+					} else if (handler != null) {
+						handler.onNs1_testEvent1();
 					}
+					ns1_testEvent1Publisher.publish(event);
 					break;
-
+				}
+	
 			}
 		}
 	};
@@ -174,7 +528,7 @@ public class GeneratedTest implements AutoCloseable {
 	public static class BaseRpcObject {
 		@Override
 		public String toString() {
-			return new Gson().toJson(this);
+			return RpcTunnel.gson.toJson(this);
 		}
 	}
 
@@ -269,7 +623,7 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] { a, b }, true, defaultTransport)) {
 			@Override
 			protected Long convert(JsonElement result) {
-				return (Long) new Gson().fromJson(result, Long.class);
+				return (Long) RpcTunnel.gson.fromJson(result, Long.class);
 			}
 		};
 	}
@@ -290,7 +644,7 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] { a }, true, defaultTransport)) {
 			@Override
 			protected RenderOptions convert(JsonElement result) {
-				return (RenderOptions) new Gson().fromJson(result, RenderOptions.class);
+				return (RenderOptions) RpcTunnel.gson.fromJson(result, RenderOptions.class);
 			}
 		};
 	}
@@ -317,7 +671,7 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] {  }, true, defaultTransport)) {
 			@Override
 			protected Long convert(JsonElement result) {
-				return (Long) new Gson().fromJson(result, Long.class);
+				return (Long) RpcTunnel.gson.fromJson(result, Long.class);
 			}
 		};
 	}
@@ -400,7 +754,26 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] {  }, true, defaultTransport)) {
 			@Override
 			protected RenderOptions[] convert(JsonElement result) {
-				return (RenderOptions[]) new Gson().fromJson(result, RenderOptions[].class);
+				return (RenderOptions[]) RpcTunnel.gson.fromJson(result, RenderOptions[].class);
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @return An iterator over the result, which decodes one element at a time while it is received over HTTP
+	 */
+	public ProxyFuture<RpcTunnel.ResultIterator<RenderOptions>> getRenderOptionsIterator() {
+		return new ProxyFuture<RpcTunnel.ResultIterator<RenderOptions>>(rpcTunnel.callForIteration("getRenderOptions",
+		new Object[] {  }, defaultTransport)) {
+			@Override
+			protected RpcTunnel.ResultIterator<RenderOptions> convert(JsonElement result) {
+				return new RpcTunnel.ResultIterator<RenderOptions>(result, RenderOptions.class);
+			}
+
+			@Override
+			protected RpcTunnel.ResultIterator<RenderOptions> convertBinary(RpcMessage result) throws java.io.IOException {
+				return new RpcTunnel.ResultIterator<RenderOptions>(result.getStreamMessage(), RenderOptions.class);
 			}
 		};
 	}
@@ -414,7 +787,7 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] { theString }, true, defaultTransport)) {
 			@Override
 			protected byte[] convert(JsonElement result) {
-				return javax.xml.bind.DatatypeConverter.parseBase64Binary(result.getAsString());
+				return (byte[]) RpcTunnel.gson.fromJson(result, byte[].class);
 			}
 		};
 	}
@@ -425,10 +798,10 @@ public class GeneratedTest implements AutoCloseable {
 	 */
 	public ProxyFuture<Long> getBufferSize(byte[] buffer) {
 		return new ProxyFuture<Long>(rpcTunnel.call("getBufferSize",
-				new Object[] { javax.xml.bind.DatatypeConverter.printBase64Binary(buffer) }, true, defaultTransport)) {
+				new Object[] { buffer }, true, defaultTransport)) {
 			@Override
 			protected Long convert(JsonElement result) {
-				return (Long) new Gson().fromJson(result, Long.class);
+				return (Long) RpcTunnel.gson.fromJson(result, Long.class);
 			}
 		};
 	}
@@ -442,7 +815,27 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] { n }, true, defaultTransport)) {
 			@Override
 			protected Long[] convert(JsonElement result) {
-				return (Long[]) new Gson().fromJson(result, Long[].class);
+				return (Long[]) RpcTunnel.gson.fromJson(result, Long[].class);
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param n
+	 * @return An iterator over the result, which decodes one element at a time while it is received over HTTP
+	 */
+	public ProxyFuture<RpcTunnel.ResultIterator<Long>> returnFrom0ToNIterator(Long n) {
+		return new ProxyFuture<RpcTunnel.ResultIterator<Long>>(rpcTunnel.callForIteration("returnFrom0ToN",
+		new Object[] { n }, defaultTransport)) {
+			@Override
+			protected RpcTunnel.ResultIterator<Long> convert(JsonElement result) {
+				return new RpcTunnel.ResultIterator<Long>(result, Long.class);
+			}
+
+			@Override
+			protected RpcTunnel.ResultIterator<Long> convertBinary(RpcMessage result) throws java.io.IOException {
+				return new RpcTunnel.ResultIterator<Long>(result.getStreamMessage(), Long.class);
 			}
 		};
 	}
@@ -483,7 +876,7 @@ public class GeneratedTest implements AutoCloseable {
 				new Object[] { ints }, true, defaultTransport)) {
 			@Override
 			protected Long convert(JsonElement result) {
-				return (Long) new Gson().fromJson(result, Long.class);
+				return (Long) RpcTunnel.gson.fromJson(result, Long.class);
 			}
 		};
 	}
@@ -0,0 +1,118 @@
+package com.chaosgroup.jsonws.stubs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+
+/**
+ * Multiplexes concurrent calls over a single HTTP/2 connection per server, instead of one connection per call.
+ * Plain http:// URLs are upgraded to HTTP/2 without TLS (h2c) if the server supports it, otherwise HTTP/1.1 is used.
+ * Kept apart from the other transports, as it is the only one which requires Java 11 (java.net.http).
+ */
+final class Http2Transport implements RpcTransport {
+
+	private final URI uri;
+	private final RpcRuntime runtime;
+	private volatile boolean cbor = false;
+
+	public Http2Transport(String httpUrl, RpcRuntime runtime) throws URISyntaxException {
+		this.uri = new URI(httpUrl);
+		this.runtime = runtime;
+	}
+
+	/**
+	 * Sends requests as CBOR and accepts CBOR responses, instead of JSON
+	 */
+	void setCbor(boolean cbor) {
+		this.cbor = cbor;
+	}
+
+	@Override
+	public Future<RpcMessage> sendMessage(final RpcRequest message, final RpcTunnel.CallTiming timing) {
+		boolean useCbor = cbor;
+		byte[] body = useCbor ? message.toCbor() : message.toJson().toString().getBytes(StandardCharsets.UTF_8);
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+				.header("Content-Type", useCbor ? Cbor.CONTENT_TYPE : "application/json")
+				.header("traceparent", timing.getTraceParent())
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body));
+		if (useCbor) {
+			// Incrementally read results are requested as JSON, which is read element by element
+			request.header("Accept", message.isResultStreamed() ? "application/json" : Cbor.CONTENT_TYPE);
+		}
+		timing.serializeNanos += timing.lap();
+
+		HttpResponse.BodyHandler<InputStream> bodyHandler = new HttpResponse.BodyHandler<InputStream>() {
+			@Override
+			public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo responseInfo) {
+				timing.waitNanos = timing.lap();
+				if (message.isResultStreamed()) {
+					return HttpResponse.BodySubscribers.ofInputStream();
+				}
+				// Other responses are received in full, without blocking a thread while they arrive
+				return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(),
+						new java.util.function.Function<byte[], InputStream>() {
+							@Override
+							public InputStream apply(byte[] bytes) {
+								return new ByteArrayInputStream(bytes);
+							}
+						});
+			}
+		};
+		return getHttpClient(runtime).sendAsync(request.build(), bodyHandler).thenApply(
+				new java.util.function.Function<HttpResponse<InputStream>, RpcMessage>() {
+					@Override
+					public RpcMessage apply(HttpResponse<InputStream> response) {
+						try {
+							return readResponse(response, message, timing);
+						} catch (IOException e) {
+							throw new CompletionException(e);
+						}
+					}
+				});
+	}
+
+	private static RpcMessage readResponse(HttpResponse<InputStream> response, RpcRequest message,
+			RpcTunnel.CallTiming timing) throws IOException {
+		String contentType = HttpTransport.getMediaType(response.headers().firstValue("Content-Type").orElse(null));
+		timing.serverNanos = HttpTransport.parseServerTiming(response.headers().firstValue("Server-Timing").orElse(null));
+		boolean isResponseDataRpc = "application/json".equals(contentType) || Cbor.CONTENT_TYPE.equals(contentType);
+		InputStream body = response.body();
+		// Like HttpURLConnection, only JSON-RPC errors are read from error responses
+		if (response.statusCode() >= 400 && !(isResponseDataRpc && response.statusCode() == 500)) {
+			body.close();
+			throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + response.uri());
+		}
+		if (message.isResultStreamed() && response.statusCode() < 400 && "application/json".equals(contentType)) {
+			// The result is read and the stream closed by the caller
+			return new RpcMessage(body).setTiming(timing);
+		}
+		try (InputStream responseStream = body) {
+			RpcMessage result = HttpTransport.readResponse(contentType, responseStream);
+			timing.readNanos = timing.lap();
+			return result.setTiming(timing);
+		}
+	}
+
+	// The client is shared by the tunnels of the runtime; only created when first needed
+	private static HttpClient getHttpClient(RpcRuntime runtime) {
+		synchronized (runtime) {
+			if (runtime.httpClient == null) {
+				runtime.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+			}
+			return (HttpClient) runtime.httpClient;
+		}
+	}
+
+	@Override
+	public void close() {
+		// The HTTP client belongs to the runtime
+	}
+}
@@ -0,0 +1,353 @@
+package com.chaosgroup.jsonws.stubs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for JSON-WS proxies.
+ *
+ * Calls are started on a fixed schedule derived from the target rate, regardless of how long earlier calls take.
+ * Latency is measured from each call's intended start time, so time spent waiting behind slow calls is included
+ * (no coordinated omission). The service time, measured from the actual start, is reported alongside it.
+ * Calls which have not completed a minute after the run are cancelled and reported as timeouts.
+ *
+ * Usage: LoadGenerator url [rate=100] [seconds=10] [concurrency=16] [transport=http|http2|ws]
+ *     [encoding=json|cbor] [mix=sum:3,echo:1] [bulk=getBufferSize] [bulkConnection=false]
+ */
+public final class LoadGenerator {
+
+	/**
+	 * A single call of a proxy method; the returned future completes with the call result
+	 */
+	public interface Operation {
+		Future<?> start() throws Exception;
+	}
+
+	private final Map<String, Operation> operations = new LinkedHashMap<>();
+	private final Map<String, Double> weights = new HashMap<>();
+	private double ratePerSecond = 100;
+	private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+	private int concurrency = 16;
+
+	public LoadGenerator addOperation(String name, double weight, Operation operation) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Operation weight must be positive: " + name);
+		}
+		operations.put(name, operation);
+		weights.put(name, weight);
+		return this;
+	}
+
+	public LoadGenerator setRate(double ratePerSecond) {
+		this.ratePerSecond = ratePerSecond;
+		return this;
+	}
+
+	public LoadGenerator setDuration(long duration, TimeUnit unit) {
+		this.durationNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	/**
+	 * Sets the number of calls which may be in flight at once; calls beyond it wait for a free slot
+	 */
+	public LoadGenerator setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	public Report run() throws InterruptedException {
+		if (operations.isEmpty()) {
+			throw new IllegalStateException("No operations to run");
+		}
+
+		final String[] names = operations.keySet().toArray(new String[0]);
+		final double[] cumulativeWeights = new double[names.length];
+		double totalWeight = 0;
+		for (int i = 0; i < names.length; i++) {
+			totalWeight += weights.get(names[i]);
+			cumulativeWeights[i] = totalWeight;
+		}
+
+		final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+		for (String name : names) {
+			recorders.put(name, new LatencyRecorder());
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		Random random = new Random();
+		long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+		long startTime = System.nanoTime();
+		long endTime = startTime + durationNanos;
+
+		try {
+			for (long i = 0; ; i++) {
+				final long intendedStartTime = startTime + i * intervalNanos;
+				if (intendedStartTime >= endTime) {
+					break;
+				}
+				long delay;
+				while ((delay = intendedStartTime - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(delay);
+				}
+
+				double pick = random.nextDouble() * totalWeight;
+				int index = 0;
+				while (cumulativeWeights[index] <= pick && index < names.length - 1) {
+					index++;
+				}
+				final Operation operation = operations.get(names[index]);
+				final LatencyRecorder recorder = recorders.get(names[index]);
+				recorder.schedule();
+
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						long actualStartTime = System.nanoTime();
+						boolean failed = false;
+						try {
+							operation.start().get();
+						} catch (Exception e) {
+							failed = true;
+						}
+						long completionTime = System.nanoTime();
+						recorder.record(completionTime - intendedStartTime, completionTime - actualStartTime, failed);
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			boolean isFinished = executor.awaitTermination(1, TimeUnit.MINUTES);
+			// Calls which are still running are counted as timeouts, and no longer recorded once they end
+			for (LatencyRecorder recorder : recorders.values()) {
+				recorder.close();
+			}
+			if (!isFinished) {
+				executor.shutdownNow();
+			}
+		}
+
+		return new Report(recorders, System.nanoTime() - startTime);
+	}
+
+	private static final class LatencyRecorder {
+		private long[] latencies = new long[1024];
+		private long[] serviceTimes = new long[1024];
+		private int count;
+		private int errors;
+		private int scheduled;
+		private int timeouts;
+		private boolean closed;
+
+		synchronized void schedule() {
+			scheduled++;
+		}
+
+		synchronized void close() {
+			closed = true;
+			timeouts = scheduled - count - errors;
+		}
+
+		synchronized void record(long latencyNanos, long serviceTimeNanos, boolean failed) {
+			if (closed) {
+				return;
+			}
+			if (failed) {
+				errors++;
+				return;
+			}
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+				serviceTimes = Arrays.copyOf(serviceTimes, count * 2);
+			}
+			latencies[count] = latencyNanos;
+			serviceTimes[count] = serviceTimeNanos;
+			count++;
+		}
+	}
+
+	/**
+	 * Per-operation throughput, error and timeout counts and latency percentiles of a run
+	 */
+	public static final class Report {
+		private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+		private final Map<String, LatencyRecorder> recorders;
+		private final long elapsedNanos;
+
+		private Report(Map<String, LatencyRecorder> recorders, long elapsedNanos) {
+			this.recorders = recorders;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		private static double percentileMillis(long[] sortedNanos, int count, double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * count) - 1;
+			return sortedNanos[Math.max(0, Math.min(index, count - 1))] / 1e6;
+		}
+
+		private static String formatPercentiles(long[] nanos, int count) {
+			long[] sorted = Arrays.copyOf(nanos, count);
+			Arrays.sort(sorted);
+			StringBuilder builder = new StringBuilder();
+			for (double percentile : PERCENTILES) {
+				builder.append(String.format(Locale.ROOT, " %9.2f", percentileMillis(sorted, count, percentile)));
+			}
+			return builder.toString();
+		}
+
+		@Override
+		public String toString() {
+			double elapsedSeconds = elapsedNanos / 1e9;
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format(Locale.ROOT, "%-24s %8s %8s %8s %9s %9s %9s %9s %9s %9s%n",
+					"operation (ms)", "calls", "errors", "timeouts", "calls/s", "p50", "p90", "p99", "p99.9", "max"));
+			for (Map.Entry<String, LatencyRecorder> entry : recorders.entrySet()) {
+				LatencyRecorder recorder = entry.getValue();
+				synchronized (recorder) {
+					int calls = recorder.count + recorder.errors + recorder.timeouts;
+					builder.append(String.format(Locale.ROOT, "%-24s %8d %8d %8d %9.1f", entry.getKey(), calls,
+							recorder.errors, recorder.timeouts, calls / elapsedSeconds));
+					builder.append(formatPercentiles(recorder.latencies, recorder.count));
+					builder.append(String.format("%n%-24s %8s %8s %8s %9s", "  service time", "", "", "", ""));
+					builder.append(formatPercentiles(recorder.serviceTimes, recorder.count));
+					builder.append(String.format("%n"));
+				}
+			}
+			return builder.toString();
+		}
+	}
+
+	private static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 1; i < args.length; i++) {
+			int separator = args[i].indexOf('=');
+			if (separator == -1) {
+				throw new IllegalArgumentException("Expected key=value: " + args[i]);
+			}
+			options.put(args[i].substring(0, separator), args[i].substring(separator + 1));
+		}
+		return options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Usage: LoadGenerator url [rate=100] [seconds=10] [concurrency=16] "
+					+ "[transport=http|http2|ws] [encoding=json|cbor] "
+					+ "[mix=sum:3,echo:1,getRenderOptions:1,returnFrom0ToN:1,echoStringAsBuffer:1,getBufferSize:1] "
+					+ "[bulk=getBufferSize] [bulkConnection=false]");
+			return;
+		}
+
+		Map<String, String> options = parseOptions(args);
+		double rate = Double.parseDouble(getOption(options, "rate", "100"));
+		long seconds = Long.parseLong(getOption(options, "seconds", "10"));
+		int concurrency = Integer.parseInt(getOption(options, "concurrency", "16"));
+		String transport = getOption(options, "transport", "http");
+		String encoding = getOption(options, "encoding", "json");
+		String mix = getOption(options, "mix", "sum:1");
+		String bulkMethods = getOption(options, "bulk", "");
+		boolean bulkConnection = Boolean.parseBoolean(getOption(options, "bulkConnection", "false"));
+
+		// The runtime's thread pool runs the HTTP calls, so it is sized to allow the requested concurrency
+		try (RpcRuntime runtime = new RpcRuntime(concurrency);
+				final GeneratedTest proxy = new GeneratedTest(args[0], runtime)) {
+			if ("cbor".equalsIgnoreCase(encoding)) {
+				proxy.useCBOR();
+			}
+			for (String method : bulkMethods.split(",")) {
+				if (!method.isEmpty()) {
+					proxy.setPriority(method, RpcTunnel.Priority.BULK);
+				}
+			}
+			if (bulkConnection) {
+				proxy.useBulkConnection();
+			}
+			if ("ws".equalsIgnoreCase(transport)) {
+				proxy.useWS().warmUp();
+			} else if ("http2".equalsIgnoreCase(transport)) {
+				proxy.useHTTP2();
+			} else {
+				proxy.useHTTP();
+			}
+
+			Map<String, Operation> availableOperations = getTestOperations(proxy);
+			LoadGenerator loadGenerator = new LoadGenerator()
+					.setRate(rate)
+					.setDuration(seconds, TimeUnit.SECONDS)
+					.setConcurrency(concurrency);
+			for (String entry : mix.split(",")) {
+				String[] nameAndWeight = entry.split(":");
+				Operation operation = availableOperations.get(nameAndWeight[0]);
+				if (operation == null) {
+					throw new IllegalArgumentException("Unknown operation: " + nameAndWeight[0]);
+				}
+				double weight = nameAndWeight.length > 1 ? Double.parseDouble(nameAndWeight[1]) : 1;
+				loadGenerator.addOperation(nameAndWeight[0], weight, operation);
+			}
+
+			System.out.println(String.format(Locale.ROOT, "%s: %.1f calls/s for %d s, concurrency %d, transport %s, encoding %s",
+					args[0], rate, seconds, concurrency, transport, encoding));
+			System.out.print(loadGenerator.run());
+		}
+	}
+
+	private static String getOption(Map<String, String> options, String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+
+	private static Map<String, Operation> getTestOperations(final GeneratedTest proxy) {
+		final GeneratedTest.RenderOptions renderOptions = new GeneratedTest.RenderOptions();
+		renderOptions.width = 640L;
+		renderOptions.height = 360L;
+		renderOptions.renderMode = GeneratedTest.RenderMode.RtCpu;
+
+		Map<String, Operation> operations = new HashMap<>();
+		operations.put("sum", new Operation() {
+			@Override
+			public Future<?> start() {
+				return proxy.sum(2L, 3L);
+			}
+		});
+		operations.put("echo", new Operation() {
+			@Override
+			public Future<?> start() {
+				return proxy.echo(renderOptions);
+			}
+		});
+		operations.put("getRenderOptions", new Operation() {
+			@Override
+			public Future<?> start() {
+				return proxy.getRenderOptions();
+			}
+		});
+		operations.put("returnFrom0ToN", new Operation() {
+			@Override
+			public Future<?> start() {
+				return proxy.returnFrom0ToN(1000L);
+			}
+		});
+		operations.put("echoStringAsBuffer", new Operation() {
+			@Override
+			public Future<?> start() {
+				return proxy.echoStringAsBuffer("Hello, world!");
+			}
+		});
+		final byte[] largeBuffer = new byte[1024 * 1024];
+		operations.put("getBufferSize", new Operation() {
+			@Override
+			public Future<?> start() {
+				return proxy.getBufferSize(largeBuffer);
+			}
+		});
+		return operations;
+	}
+}
@@ -8,6 +8,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 
 public class Main {
     public static void main(String[] args) throws Exception {
@@ -40,6 +41,31 @@ public class Main {
                     System.out.println("Test event data " + data);
                 }
             });
+            proxy.testEventPublisher().subscribe(new Flow.Subscriber<Long>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(Long data) {
+                    System.out.println("Published test event data " + data);
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    throwable.printStackTrace();
+                }
+
+                @Override
+                public void onComplete() {
+                    System.out.println("Test event publisher completed");
+                }
+            });
 
             System.out.println("HTTP Echo object: " +
                     proxy.useHTTP().echoObject(
@@ -47,6 +73,9 @@ public class Main {
 
             System.out.println("HTTP Sum = " + proxy.sum(5L, 6L).get());
 
+            ProxyFuture<Long> timedSum = proxy.sum(7L, 8L);
+            System.out.println("HTTP Sum = " + timedSum.get() + ", " + timedSum.getTiming());
+
             System.out.println("HTTP Array Sum = " + proxy.sumArray(new Long[]{1L, 2L, 3L, 4L}).get());
 
             Long[] numsTo20 = proxy.returnFrom0ToN(20L).get();
@@ -0,0 +1,133 @@
+package com.chaosgroup.jsonws.stubs;
+
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections and threads shared by any number of proxies.
+ * HTTP calls of all proxies run on a single thread pool, HTTP/2 calls share one multiplexed connection per server,
+ * and proxies for the same service endpoint share one WebSocket connection (and one for bulk calls),
+ * which stays open while at least one of them is open. A connection which has closed or failed is replaced
+ * for the proxies created after it. Conflated events are delivered on a thread of their own,
+ * so that they do not wait behind HTTP calls.
+ * A runtime should be closed after all proxies using it.
+ */
+public final class RpcRuntime implements AutoCloseable {
+	public static final int DEFAULT_THREAD_COUNT = 4;
+
+	// Message ids are unique per runtime, so that tunnels can share a WebSocket connection
+	private final AtomicInteger nextId = new AtomicInteger(0);
+	private final ThreadPoolExecutor executor;
+	private ScheduledExecutorService scheduler;
+	private ExecutorService eventExecutor;
+	// HTTP/2 client, which keeps one multiplexed connection per server. Created and typed by Http2Transport only,
+	// so that proxies which do not use HTTP/2 do not require java.net.http (Java 11).
+	Object httpClient;
+	private final Map<String, WebSocketTransport> webSocketTransports = new HashMap<>();
+	private final Map<WebSocketTransport, Integer> webSocketUsers = new HashMap<>();
+
+	public RpcRuntime() {
+		this(DEFAULT_THREAD_COUNT);
+	}
+
+	/**
+	 * @param threadCount Maximum number of concurrent blocking (HTTP) calls
+	 */
+	public RpcRuntime(int threadCount) {
+		executor = new ThreadPoolExecutor(threadCount, threadCount, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), createThreadFactory("json-ws-"));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private static ThreadFactory createThreadFactory(final String namePrefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	int nextId() {
+		return nextId.getAndIncrement();
+	}
+
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	// Thread for conflated event deliveries, which must not wait behind blocking HTTP calls on the executor;
+	// only started when first needed
+	synchronized ExecutorService getEventExecutor() {
+		if (eventExecutor == null) {
+			eventExecutor = Executors.newSingleThreadExecutor(createThreadFactory("json-ws-events-"));
+		}
+		return eventExecutor;
+	}
+
+	// Timer thread for rate-limited event deliveries and held back bulk sends, only started when first needed
+	synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(createThreadFactory("json-ws-timer-"));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @param bulk Whether to acquire the separate connection for bulk calls to the endpoint
+	 */
+	synchronized WebSocketTransport acquireWebSocket(String httpUrl, boolean bulk) throws URISyntaxException {
+		String key = bulk ? "bulk " + httpUrl : httpUrl;
+		WebSocketTransport webSocketTransport = webSocketTransports.get(key);
+		if (webSocketTransport != null && webSocketTransport.isFailed()) {
+			// A closed or failed connection is never reopened, so later proxies get a new one.
+			// Its current users keep it until they release it.
+			webSocketTransports.remove(key);
+			webSocketTransport = null;
+		}
+		if (webSocketTransport == null) {
+			webSocketTransport = new WebSocketTransport(httpUrl, this);
+			webSocketTransports.put(key, webSocketTransport);
+			webSocketUsers.put(webSocketTransport, 0);
+		}
+		webSocketUsers.put(webSocketTransport, webSocketUsers.get(webSocketTransport) + 1);
+		return webSocketTransport;
+	}
+
+	synchronized void releaseWebSocket(WebSocketTransport webSocketTransport) {
+		Integer users = webSocketUsers.get(webSocketTransport);
+		if (users == null) {
+			return;
+		}
+		if (users > 1) {
+			webSocketUsers.put(webSocketTransport, users - 1);
+		} else {
+			webSocketUsers.remove(webSocketTransport);
+			webSocketTransports.values().remove(webSocketTransport);
+			webSocketTransport.close();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		for (WebSocketTransport webSocketTransport : webSocketTransports.values()) {
+			webSocketTransport.close();
+		}
+		webSocketTransports.clear();
+		webSocketUsers.clear();
+		executor.shutdownNow();
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (eventExecutor != null) {
+			eventExecutor.shutdownNow();
+		}
+	}
+}
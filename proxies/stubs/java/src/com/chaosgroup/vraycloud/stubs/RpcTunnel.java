@@ -1,59 +1,818 @@
 package com.chaosgroup.jsonws.stubs;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import org.java_websocket.WebSocket;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
 import org.java_websocket.handshake.ServerHandshake;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class RpcTunnel implements AutoCloseable {
 
 	public enum Transport {
-		HTTP, WebSocket
+		HTTP, WebSocket, HTTP2
 	}
 
-	private final AtomicInteger nextId = new AtomicInteger(0);
+	public enum Encoding {
+		JSON, CBOR
+	}
+
+	/**
+	 * Priority of the calls of a method over WebSocket.
+	 * Calls which wait for the connection are sent in priority order. Bulk calls are only handed to the connection
+	 * once it has sent all earlier data, so that calls of higher priority never queue up behind them.
+	 */
+	public enum Priority {
+		HIGH, NORMAL, BULK
+	}
+
+	// Gson instances are thread-safe and cache their type adapters, so one instance is shared.
+	// Byte arrays are written as CBOR byte strings, or as base64 strings in JSON.
+	static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(byte[].class, new Cbor.ByteArrayTypeAdapter())
+			.create();
+
+	private final String httpUrl;
+	private final RpcRuntime runtime;
+	private final boolean ownsRuntime;
+	private final EventHandler eventHandler;
+	private final HttpTransport httpTransport;
+	private final WebSocketTransport webSocketTransport;
 	private final Map<Transport, RpcTransport> transports = new HashMap<>();
+	private final Map<String, Priority> methodPriorities = new ConcurrentHashMap<>();
+	private volatile String traceParent;
+	private volatile WebSocketTransport bulkWebSocketTransport;
+	// Only created on the first HTTP/2 call, as java.net.http requires Java 11
+	private volatile Http2Transport http2Transport;
+	private Encoding encoding = Encoding.JSON;
+	// Number of local subscribers (handlers and publisher subscriptions) per event name and filter
+	private final Map<EventFilter, Integer> eventSubscribers = new HashMap<>();
+	private final List<Subscription> filteredSubscriptions = new CopyOnWriteArrayList<>();
+	// Events of a shared connection may have been requested with other filters, so they are matched again here
+	private final EventHandler tunnelEventHandler = new EventHandler() {
+		@Override
+		public void onEvent(String eventId, EventPayload event) {
+			if (eventHandler != null) {
+				eventHandler.onEvent(eventId, event);
+			}
+			for (Subscription subscription : filteredSubscriptions) {
+				if (subscription.filter.matches(eventId, event)) {
+					subscription.handler.onEvent(eventId, event);
+				}
+			}
+		}
+	};
 
+	/**
+	 * Creates a tunnel with its own connections and threads, which are released when the tunnel is closed
+	 */
 	public RpcTunnel(String httpUrl, EventHandler eventHandler) throws MalformedURLException, URISyntaxException {
-		transports.put(Transport.HTTP, new HttpTransport(httpUrl));
-		transports.put(Transport.WebSocket, new WebSocketTransport(httpUrl, eventHandler));
+		this(httpUrl, eventHandler, new RpcRuntime(), true);
+	}
+
+	/**
+	 * Creates a tunnel which shares the connections and threads of the given runtime
+	 */
+	public RpcTunnel(String httpUrl, EventHandler eventHandler, RpcRuntime runtime)
+			throws MalformedURLException, URISyntaxException {
+		this(httpUrl, eventHandler, runtime, false);
+	}
+
+	private RpcTunnel(String httpUrl, EventHandler eventHandler, RpcRuntime runtime, boolean ownsRuntime)
+			throws MalformedURLException, URISyntaxException {
+		this.httpUrl = httpUrl;
+		this.runtime = runtime;
+		this.ownsRuntime = ownsRuntime;
+		this.eventHandler = eventHandler;
+		webSocketTransport = runtime.acquireWebSocket(httpUrl, false);
+		webSocketTransport.addEventHandler(tunnelEventHandler);
+		httpTransport = new HttpTransport(httpUrl, runtime.getExecutor());
+		transports.put(Transport.HTTP, httpTransport);
+		transports.put(Transport.WebSocket, webSocketTransport);
 	}
 
 	public Future<RpcMessage> call(String method, Object[] params, boolean expectReturn, final Transport transport) {
-		final JsonObject json = new JsonObject();
-		json.addProperty("jsonrpc", "2.0");
-		if (expectReturn) {
-			json.addProperty("id", nextId.getAndIncrement());
+		return call(method, params, expectReturn, transport, false, false);
+	}
+
+	/**
+	 * Calls a method which has no side effects. Over HTTP the call is sent as a GET request,
+	 * whose result is cached and revalidated with its ETag on later calls with the same params.
+	 * Calls whose params are too large for a URL are posted instead, and large results are not cached.
+	 */
+	public Future<RpcMessage> callReadOnly(String method, Object[] params, final Transport transport) {
+		return call(method, params, true, transport, false, true);
+	}
+
+	/**
+	 * Calls a method whose array result is iterated over with a ResultIterator.
+	 * Over HTTP the result is delivered as the unread response stream, other transports deliver it parsed.
+	 */
+	public Future<RpcMessage> callForIteration(String method, Object[] params, final Transport transport) {
+		return call(method, params, true, transport, true, false);
+	}
+
+	private Future<RpcMessage> call(String method, Object[] params, boolean expectReturn, Transport transport,
+			boolean isResultStreamed, boolean isReadOnly) {
+		CallTiming timing = new CallTiming(traceParent);
+		Priority priority = methodPriorities.containsKey(method) ? methodPriorities.get(method) : Priority.NORMAL;
+		RpcRequest request = new RpcRequest(method, expectReturn ? runtime.nextId() : null, params, priority);
+		request.setResultStreamed(isResultStreamed);
+		request.setReadOnly(isReadOnly);
+		timing.serializeNanos = timing.lap();
+		WebSocketTransport bulkTransport = bulkWebSocketTransport;
+		if (transport == Transport.WebSocket && priority == Priority.BULK && bulkTransport != null) {
+			return bulkTransport.sendMessage(request, timing);
 		}
-		json.addProperty("method", method);
-		json.add("params", new Gson().toJsonTree(params));
-		return transports.get(transport).sendMessage(json);
+		if (transport == Transport.HTTP2) {
+			return getHttp2Transport().sendMessage(request, timing);
+		}
+		return transports.get(transport).sendMessage(request, timing);
+	}
+
+	/**
+	 * Makes the following calls child spans of the given W3C trace context (traceparent), so that they join the
+	 * caller's trace. Without one, each call starts a new trace.
+	 * @param traceParent A traceparent header value, or null
+	 */
+	public void setTraceParent(String traceParent) {
+		if (traceParent != null && !CallTiming.isValidTraceParent(traceParent)) {
+			throw new IllegalArgumentException("Invalid traceparent: " + traceParent);
+		}
+		this.traceParent = traceParent;
+	}
+
+	/**
+	 * Sets the priority of the calls of the given method over WebSocket; calls are NORMAL by default
+	 */
+	public void setPriority(String method, Priority priority) {
+		methodPriorities.put(method, priority);
+	}
+
+	/**
+	 * Sends BULK calls over a second WebSocket connection, so that their data does not hold up other calls
+	 * on the main connection. The connection is shared by tunnels of the same runtime and opened on first use.
+	 */
+	public synchronized void useBulkConnection() {
+		if (bulkWebSocketTransport != null) {
+			return;
+		}
+		try {
+			WebSocketTransport bulkTransport = runtime.acquireWebSocket(httpUrl, true);
+			bulkTransport.requestCbor(encoding == Encoding.CBOR);
+			bulkWebSocketTransport = bulkTransport;
+		} catch (URISyntaxException e) {
+			// The same URL has already been accepted for the main connection
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private synchronized Http2Transport getHttp2Transport() {
+		if (http2Transport == null) {
+			try {
+				Http2Transport transport = new Http2Transport(httpUrl, runtime);
+				transport.setCbor(encoding == Encoding.CBOR);
+				http2Transport = transport;
+			} catch (URISyntaxException e) {
+				// The same URL has already been accepted for the WebSocket connection
+				throw new IllegalStateException(e);
+			}
+		}
+		return http2Transport;
+	}
+
+	/**
+	 * Sets the encoding of the messages exchanged with the server. JSON is the default.
+	 * CBOR carries byte arrays natively instead of as base64 strings.
+	 * The WebSocket connection negotiates its encoding when it is opened, so it is only switched
+	 * if it has not been opened yet, and keeps JSON unless the server greets it with a CBOR message.
+	 */
+	public synchronized void setEncoding(Encoding encoding) {
+		this.encoding = encoding;
+		httpTransport.setCbor(encoding == Encoding.CBOR);
+		if (http2Transport != null) {
+			http2Transport.setCbor(encoding == Encoding.CBOR);
+		}
+		webSocketTransport.requestCbor(encoding == Encoding.CBOR);
+		if (bulkWebSocketTransport != null) {
+			bulkWebSocketTransport.requestCbor(encoding == Encoding.CBOR);
+		}
+	}
+
+	/**
+	 * Registers a local subscriber for the given event.
+	 * The server subscription (rpc.on) is only requested for the first local subscriber.
+	 */
+	public void subscribe(String eventName) {
+		addSubscriber(new EventFilter(eventName, null));
+	}
+
+	/**
+	 * Removes a local subscriber for the given event.
+	 * The server subscription is cancelled (rpc.off) once the last local subscriber is gone.
+	 */
+	public void unsubscribe(String eventName) {
+		removeSubscriber(new EventFilter(eventName, null));
+	}
+
+	/**
+	 * Subscribes a handler to the events whose data fields have the given values; null values match any value.
+	 * The server only sends the events which match the filter, so that unneeded events are neither sent nor parsed.
+	 * @return The subscription, which is cancelled when it is closed
+	 */
+	public Subscription subscribe(String eventName, Map<String, ?> filter, EventHandler handler) {
+		Subscription subscription = new Subscription(this, new EventFilter(eventName, filter), handler);
+		filteredSubscriptions.add(subscription);
+		addSubscriber(subscription.filter);
+		return subscription;
+	}
+
+	private synchronized void addSubscriber(EventFilter filter) {
+		Integer count = eventSubscribers.get(filter);
+		eventSubscribers.put(filter, count == null ? 1 : count + 1);
+		if (count == null) {
+			webSocketTransport.subscribe(filter);
+		}
+	}
+
+	private synchronized void removeSubscriber(EventFilter filter) {
+		Integer count = eventSubscribers.get(filter);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			eventSubscribers.put(filter, count - 1);
+		} else {
+			eventSubscribers.remove(filter);
+			webSocketTransport.unsubscribe(filter);
+		}
+	}
+
+	RpcRuntime getRuntime() {
+		return runtime;
+	}
+
+	/**
+	 * Opens the WebSocket connection ahead of its first use and waits until it is established
+	 */
+	public void warmUp() throws InterruptedException, ExecutionException {
+		webSocketTransport.warmUp();
 	}
 
 	@Override
 	public void close() throws Exception {
-		for (RpcTransport transport : transports.values()) {
-			transport.close();
+		synchronized (this) {
+			for (EventFilter filter : eventSubscribers.keySet()) {
+				webSocketTransport.unsubscribe(filter);
+			}
+			eventSubscribers.clear();
+			filteredSubscriptions.clear();
+			if (bulkWebSocketTransport != null) {
+				runtime.releaseWebSocket(bulkWebSocketTransport);
+				bulkWebSocketTransport = null;
+			}
+		}
+		webSocketTransport.removeEventHandler(tunnelEventHandler);
+		runtime.releaseWebSocket(webSocketTransport);
+		httpTransport.close();
+		if (ownsRuntime) {
+			runtime.close();
 		}
 	}
 
 	public interface EventHandler {
-		public void onEvent(String eventId, JsonElement eventData);
+		public void onEvent(String eventId, EventPayload event);
+	}
+
+	/**
+	 * A handler's subscription to filtered events
+	 */
+	public static final class Subscription implements AutoCloseable {
+		private final RpcTunnel tunnel;
+		private final EventFilter filter;
+		private final EventHandler handler;
+		private final AtomicBoolean isClosed = new AtomicBoolean();
+
+		private Subscription(RpcTunnel tunnel, EventFilter filter, EventHandler handler) {
+			this.tunnel = tunnel;
+			this.filter = filter;
+			this.handler = handler;
+		}
+
+		@Override
+		public void close() {
+			if (isClosed.compareAndSet(false, true)) {
+				tunnel.filteredSubscriptions.remove(this);
+				tunnel.removeSubscriber(filter);
+			}
+		}
+	}
+
+	/**
+	 * The data of a received event, which is only parsed when it is first requested
+	 */
+	public static final class EventPayload {
+		private final String message;
+		private final byte[] cborMessage;
+		private JsonElement data;
+		private boolean isParsed = false;
+
+		EventPayload(String message) {
+			this.message = message;
+			this.cborMessage = null;
+		}
+
+		EventPayload(byte[] cborMessage) {
+			this.message = null;
+			this.cborMessage = cborMessage;
+		}
+
+		public synchronized JsonElement get() {
+			if (!isParsed) {
+				if (cborMessage != null) {
+					try {
+						data = ((JsonObject) Cbor.toJsonElement(Cbor.decode(ByteBuffer.wrap(cborMessage)))).get("result");
+					} catch (IOException e) {
+						throw new IllegalStateException("Failed to decode event", e);
+					}
+				} else {
+					data = ((JsonObject) new JsonParser().parse(message)).get("result");
+				}
+				isParsed = true;
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Phase timing of a single call, with the W3C trace context (traceparent) sent along with it.
+	 * The server logs the trace id with its own execution time, so both sides of a call can be joined.
+	 * Phases which do not apply to the transport used, or which the server did not report, are -1.
+	 */
+	public static final class CallTiming {
+		// version-traceid-parentid-flags, where the trace and parent ids must not be all zeros
+		private static final Pattern TRACE_PARENT =
+				Pattern.compile("(?!ff)[0-9a-f]{2}-(?!0{32})[0-9a-f]{32}-(?!0{16})[0-9a-f]{16}-[0-9a-f]{2}");
+
+		private final String traceId;
+		private final String spanId;
+		private final String traceFlags;
+		private long phaseStart = System.nanoTime();
+
+		long serializeNanos = -1;
+		long queueNanos = -1;
+		long connectNanos = -1;
+		long writeNanos = -1;
+		long waitNanos = -1;
+		long serverNanos = -1;
+		long readNanos = -1;
+		long decodeNanos = -1;
+
+		/**
+		 * @param parentTraceParent The traceparent of the caller's span, or null to start a new trace
+		 */
+		CallTiming(String parentTraceParent) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (parentTraceParent != null) {
+				String[] fields = parentTraceParent.split("-");
+				traceId = fields[1];
+				traceFlags = fields[3];
+			} else {
+				traceId = String.format("%016x%016x", random.nextLong(), random.nextLong());
+				traceFlags = "01";
+			}
+			spanId = String.format("%016x", random.nextLong());
+		}
+
+		static boolean isValidTraceParent(String traceParent) {
+			return TRACE_PARENT.matcher(traceParent).matches();
+		}
+
+		// Ends the current phase and returns its duration
+		long lap() {
+			return lap(System.nanoTime());
+		}
+
+		long lap(long now) {
+			long duration = now - phaseStart;
+			phaseStart = now;
+			return duration;
+		}
+
+		String getTraceParent() {
+			return "00-" + traceId + "-" + spanId + "-" + traceFlags;
+		}
+
+		public String getTraceId() {
+			return traceId;
+		}
+
+		public String getSpanId() {
+			return spanId;
+		}
+
+		/** Building and encoding the JSON-RPC request */
+		public long getSerializeNanos() {
+			return serializeNanos;
+		}
+
+		/** Waiting for a runtime thread (HTTP) */
+		public long getQueueNanos() {
+			return queueNanos;
+		}
+
+		/** Opening or reusing a connection (HTTP) */
+		public long getConnectNanos() {
+			return connectNanos;
+		}
+
+		/** Writing the request; over WebSocket, waiting for the messages queued ahead of it to be sent */
+		public long getWriteNanos() {
+			return writeNanos;
+		}
+
+		/** From the written request until the response arrives, including the server execution time */
+		public long getWaitNanos() {
+			return waitNanos;
+		}
+
+		/** Method execution time reported by the server */
+		public long getServerNanos() {
+			return serverNanos;
+		}
+
+		/** Reading and parsing the response */
+		public long getReadNanos() {
+			return readNanos;
+		}
+
+		/** Converting the result to its Java type */
+		public long getDecodeNanos() {
+			return decodeNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("trace ").append(traceId).append(':');
+			appendPhase(builder, "serialize", serializeNanos);
+			appendPhase(builder, "queue", queueNanos);
+			appendPhase(builder, "connect", connectNanos);
+			appendPhase(builder, "write", writeNanos);
+			appendPhase(builder, "wait", waitNanos);
+			appendPhase(builder, "server", serverNanos);
+			appendPhase(builder, "read", readNanos);
+			appendPhase(builder, "decode", decodeNanos);
+			return builder.toString();
+		}
+
+		private static void appendPhase(StringBuilder builder, String name, long nanos) {
+			if (nanos >= 0) {
+				builder.append(String.format(" %s %.3f ms", name, nanos / 1e6));
+			}
+		}
+	}
+
+	/**
+	 * Delivery mode of conflating event subscriptions.
+	 * These keep only the newest undelivered event and decode it when it is delivered on the runtime's event thread.
+	 */
+	public static final class Conflation {
+		final long intervalNanos;
+
+		private Conflation(long intervalNanos) {
+			this.intervalNanos = intervalNanos;
+		}
+
+		/**
+		 * Delivers the newest event as soon as the handler has finished with the previous one
+		 */
+		public static Conflation latest() {
+			return new Conflation(0);
+		}
+
+		/**
+		 * Delivers the newest event at most once per interval
+		 */
+		public static Conflation atInterval(long interval, TimeUnit unit) {
+			if (interval <= 0) {
+				throw new IllegalArgumentException("Conflation interval must be positive");
+			}
+			return new Conflation(unit.toNanos(interval));
+		}
+	}
+
+	/**
+	 * Iterates over the elements of an array result. Results read from an HTTP response are decoded one element
+	 * at a time while the response is read, so they are never held in memory as a whole.
+	 * Iterators which are not read to the end should be closed to release their connection.
+	 * A null result is iterated as an empty array, while other results which are not arrays are rejected.
+	 */
+	public static final class ResultIterator<T> implements Iterator<T>, Closeable {
+		private final Class<T> elementType;
+		private final JsonReader reader;
+		private final Iterator<JsonElement> elements;
+		private boolean isFinished = false;
+
+		ResultIterator(JsonElement result, Class<T> elementType) {
+			this.elementType = elementType;
+			this.reader = null;
+			if (result == null || result.isJsonNull()) {
+				this.elements = Collections.<JsonElement>emptyIterator();
+			} else if (result.isJsonArray()) {
+				this.elements = result.getAsJsonArray().iterator();
+			} else {
+				throw new JsonSyntaxException("Expected an array result but was " + result);
+			}
+		}
+
+		/**
+		 * @param response A JSON-RPC response, read up to its result array
+		 */
+		ResultIterator(InputStream response, Class<T> elementType) throws IOException {
+			this.elementType = elementType;
+			this.elements = null;
+			reader = new JsonReader(new InputStreamReader(response, StandardCharsets.UTF_8));
+			try {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName();
+					if ("error".equals(name) && reader.peek() != JsonToken.NULL) {
+						throw new IOException(new JsonParser().parse(reader).toString());
+					}
+					if ("result".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+						reader.beginArray();
+						return;
+					}
+					if ("result".equals(name) && reader.peek() != JsonToken.NULL) {
+						throw new JsonSyntaxException("Expected an array result but was " + new JsonParser().parse(reader));
+					}
+					reader.skipValue();
+				}
+				isFinished = true;
+				reader.close();
+			} catch (IOException | RuntimeException e) {
+				reader.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (elements != null) {
+				return elements.hasNext();
+			}
+			if (isFinished) {
+				return false;
+			}
+			try {
+				if (reader.hasNext()) {
+					return true;
+				}
+				// Read the rest of the response, so its connection can be reused
+				reader.endArray();
+				while (reader.hasNext()) {
+					reader.nextName();
+					reader.skipValue();
+				}
+				reader.endObject();
+				close();
+				return false;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return elements != null ? gson.fromJson(elements.next(), elementType) : gson.fromJson(reader, elementType);
+		}
+
+		/**
+		 * @return A sequential stream of the remaining elements, which closes the iterator when it is closed
+		 */
+		public Stream<T> stream() {
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+					.onClose(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								close();
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}
+					});
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!isFinished && reader != null) {
+				isFinished = true;
+				reader.close();
+			}
+		}
+	}
+}
+
+/**
+ * An event name with the values which fields of the event data must have, sent as the params of rpc.on and rpc.off.
+ * Filters with the same values are equal regardless of their order, as the server treats them as the same subscription.
+ */
+final class EventFilter {
+	private final String eventName;
+	private final Map<String, JsonElement> values = new TreeMap<>();
+
+	EventFilter(String eventName, Map<String, ?> values) {
+		this.eventName = eventName;
+		if (values != null) {
+			for (Map.Entry<String, ?> value : values.entrySet()) {
+				if (value.getValue() != null) {
+					this.values.put(value.getKey(), RpcTunnel.gson.toJsonTree(value.getValue()));
+				}
+			}
+		}
+	}
+
+	Object[] toParams() {
+		return values.isEmpty() ? new Object[] { eventName } : new Object[] { eventName, values };
+	}
+
+	boolean matches(String eventId, RpcTunnel.EventPayload event) {
+		if (!eventName.equals(eventId)) {
+			return false;
+		}
+		if (values.isEmpty()) {
+			return true;
+		}
+		JsonElement data = event.get();
+		if (data == null || !data.isJsonObject()) {
+			return false;
+		}
+		for (Map.Entry<String, JsonElement> value : values.entrySet()) {
+			if (!value.getValue().equals(data.getAsJsonObject().get(value.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof EventFilter)) {
+			return false;
+		}
+		EventFilter otherFilter = (EventFilter) other;
+		return eventName.equals(otherFilter.eventName) && values.equals(otherFilter.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(eventName, values);
+	}
+}
+
+/**
+ * A JSON-RPC request, which the transports serialize in the encoding they use
+ */
+final class RpcRequest {
+	private final String method;
+	private final Integer id;
+	private final Object[] params;
+	private final RpcTunnel.Priority priority;
+	private final Map<String, Object> members = new LinkedHashMap<>();
+	private boolean isResultStreamed = false;
+	private boolean isReadOnly = false;
+
+	RpcRequest(String method, Integer id, Object[] params, RpcTunnel.Priority priority) {
+		this.method = method;
+		this.id = id;
+		this.params = params;
+		this.priority = priority;
+	}
+
+	RpcTunnel.Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return Whether the caller reads the result incrementally from the response, if the transport supports it
+	 */
+	boolean isResultStreamed() {
+		return isResultStreamed;
+	}
+
+	void setResultStreamed(boolean isResultStreamed) {
+		this.isResultStreamed = isResultStreamed;
+	}
+
+	/**
+	 * @return Whether the method has no side effects, so that its result may be cached
+	 */
+	boolean isReadOnly() {
+		return isReadOnly;
+	}
+
+	void setReadOnly(boolean isReadOnly) {
+		this.isReadOnly = isReadOnly;
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	String getParamsJson() {
+		return RpcTunnel.gson.toJson(params);
+	}
+
+	/**
+	 * @return The request id, or null for notifications
+	 */
+	Integer getId() {
+		return id;
+	}
+
+	/**
+	 * Adds a transport specific member to the request
+	 */
+	void addMember(String name, Object value) {
+		members.put(name, value);
+	}
+
+	JsonObject toJson() {
+		JsonObject json = new JsonObject();
+		json.addProperty("jsonrpc", "2.0");
+		if (id != null) {
+			json.addProperty("id", id);
+		}
+		json.addProperty("method", method);
+		json.add("params", RpcTunnel.gson.toJsonTree(params));
+		for (Map.Entry<String, Object> member : members.entrySet()) {
+			json.add(member.getKey(), RpcTunnel.gson.toJsonTree(member.getValue()));
+		}
+		return json;
+	}
+
+	byte[] toCbor() {
+		// Params are serialized straight to CBOR, so byte arrays are never converted to base64
+		Cbor.Writer writer = new Cbor.Writer();
+		writer.beginObject();
+		writer.name("jsonrpc").value("2.0");
+		if (id != null) {
+			writer.name("id").value(id.longValue());
+		}
+		writer.name("method").value(method);
+		writer.name("params");
+		RpcTunnel.gson.toJson(params, Object[].class, writer);
+		for (Map.Entry<String, Object> member : members.entrySet()) {
+			writer.name(member.getKey());
+			RpcTunnel.gson.toJson(member.getValue(), member.getValue().getClass(), writer);
+		}
+		writer.endObject();
+		return writer.toByteArray();
 	}
 }
 
 final class RpcMessage {
 	private JsonObject jsonMessage;
 	private byte[] binaryMessage;
+	private InputStream streamMessage;
+	private RpcTunnel.CallTiming timing;
 
 	public RpcMessage(JsonObject json) {
 		jsonMessage = json;
@@ -63,6 +822,25 @@ final class RpcMessage {
 		binaryMessage = rawBytes;
 	}
 
+	public RpcMessage(InputStream stream) {
+		streamMessage = stream;
+	}
+
+	/**
+	 * Creates a message from a decoded CBOR response. Byte array results are kept as binary messages.
+	 */
+	static RpcMessage fromCbor(Object response) throws IOException {
+		if (!(response instanceof Map)) {
+			throw new IOException("Invalid CBOR response");
+		}
+		Map<?, ?> responseMap = (Map<?, ?>) response;
+		Object result = responseMap.get("result");
+		if (result instanceof byte[] && responseMap.get("error") == null) {
+			return new RpcMessage((byte[]) result);
+		}
+		return new RpcMessage((JsonObject) Cbor.toJsonElement(responseMap));
+	}
+
 	public boolean hasJsonMessage() {
 		return jsonMessage != null;
 	}
@@ -74,70 +852,266 @@ final class RpcMessage {
 		return jsonMessage;
 	}
 
-	public byte[] getBinaryMessage() {
+	public byte[] getBinaryMessage() throws IOException {
+		if (binaryMessage == null && streamMessage != null) {
+			try (InputStream stream = streamMessage) {
+				binaryMessage = HttpTransport.readBinaryInputStream(stream);
+			}
+			streamMessage = null;
+		}
 		if (binaryMessage == null) {
 			throw new IllegalStateException();
 		}
 		return binaryMessage;
 	}
+
+	public RpcTunnel.CallTiming getTiming() {
+		return timing;
+	}
+
+	RpcMessage setTiming(RpcTunnel.CallTiming timing) {
+		this.timing = timing;
+		return this;
+	}
+
+	/**
+	 * Copies a fully read message, so that a cached message is never modified through the copies returned to callers.
+	 * The JSON message is shared, as results are only read from it.
+	 */
+	RpcMessage copy() throws IOException {
+		if (jsonMessage != null) {
+			return new RpcMessage(jsonMessage);
+		}
+		return new RpcMessage(getBinaryMessage().clone());
+	}
+
+	public InputStream getStreamMessage() {
+		if (streamMessage != null) {
+			return streamMessage;
+		}
+		if (binaryMessage == null) {
+			throw new IllegalStateException();
+		}
+		return new ByteArrayInputStream(binaryMessage);
+	}
 }
 
 interface RpcTransport extends AutoCloseable {
-	Future<RpcMessage> sendMessage(final JsonObject message);
+	/**
+	 * @param timing Records the phases of the call and provides its traceparent, or null for internal notifications
+	 */
+	Future<RpcMessage> sendMessage(final RpcRequest message, RpcTunnel.CallTiming timing);
 }
 
 final class HttpTransport implements RpcTransport {
 
-	private URL url;
+	private static final Pattern SERVER_TIMING_DURATION = Pattern.compile("dur=([0-9.]+)");
+	// Longer URLs may be rejected by servers and proxies (414 or 431), so calls with larger params are posted
+	private static final int MAX_GET_QUERY_LENGTH = 4096;
+	// Larger responses, or responses of unknown length, are not cached, which bounds the cache to 16 MB
+	private static final int MAX_CACHED_RESPONSES = 256;
+	private static final int MAX_CACHED_RESPONSE_BYTES = 64 * 1024;
+
+	private final URL url;
+	private final ExecutorService executor;
+	private volatile boolean cbor = false;
+	// Responses of read-only calls with their ETags, least recently used first
+	private final Map<String, CachedResponse> responseCache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+			return size() > MAX_CACHED_RESPONSES;
+		}
+	};
+
+	private static final class CachedResponse {
+		final String etag;
+		final RpcMessage message;
+
+		CachedResponse(String etag, RpcMessage message) {
+			this.etag = etag;
+			this.message = message;
+		}
+	}
 
-	private ExecutorService executor =
-			new ThreadPoolExecutor(1, 10, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	public HttpTransport(String httpUrl, ExecutorService executor) throws MalformedURLException {
+		this.url = new URL(httpUrl);
+		this.executor = executor;
+	}
 
-	public HttpTransport(String httpUrl) throws MalformedURLException {
-		url = new URL(httpUrl);
+	/**
+	 * Sends requests as CBOR and accepts CBOR responses, instead of JSON
+	 */
+	void setCbor(boolean cbor) {
+		this.cbor = cbor;
 	}
 
 	@Override
-	public Future<RpcMessage> sendMessage(final JsonObject message) {
+	public Future<RpcMessage> sendMessage(final RpcRequest message, final RpcTunnel.CallTiming timing) {
 		return executor.submit(new Callable<RpcMessage>() {
 			@Override
 			public RpcMessage call() throws Exception {
-				return executePost(message.toString());
+				timing.queueNanos = timing.lap();
+				if (message.isReadOnly() && !message.isResultStreamed()) {
+					return executeGet(message, timing);
+				}
+				return executePost(message, timing);
 			}
 		});
 	}
 
-	private RpcMessage executePost(String jsonBody) throws Exception {
+	// Read-only calls are sent without an id, so that the server uses the method name as the id
+	// and an unchanged result is sent with the same ETag
+	private RpcMessage executeGet(RpcRequest message, RpcTunnel.CallTiming timing) throws Exception {
+		boolean useCbor = cbor;
+		String query = "params=" + URLEncoder.encode(message.getParamsJson(), "UTF-8");
+		if (query.length() > MAX_GET_QUERY_LENGTH) {
+			return executePost(message, timing);
+		}
+		URL getUrl = new URL(url + "/" + message.getMethod() + "?" + query);
+		String cacheKey = (useCbor ? "cbor " : "json ") + getUrl;
+		CachedResponse cached;
+		synchronized (responseCache) {
+			cached = responseCache.get(cacheKey);
+		}
+		timing.serializeNanos += timing.lap();
+		HttpURLConnection connection = (HttpURLConnection) getUrl.openConnection();
+		try {
+			if (useCbor) {
+				connection.setRequestProperty("Accept", Cbor.CONTENT_TYPE);
+			}
+			if (cached != null) {
+				connection.setRequestProperty("If-None-Match", cached.etag);
+			}
+			connection.setRequestProperty("traceparent", timing.getTraceParent());
+			connection.setUseCaches(false);
+			connection.connect();
+			timing.connectNanos = timing.lap();
+			int responseCode = connection.getResponseCode();
+			timing.waitNanos = timing.lap();
+			timing.serverNanos = parseServerTiming(connection.getHeaderField("Server-Timing"));
+			String contentType = getContentType(connection);
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				connection.getInputStream().close();
+				return cached.message.copy().setTiming(timing);
+			}
+			boolean isResponseDataRpc = "application/json".equals(contentType) || Cbor.CONTENT_TYPE.equals(contentType);
+			if (responseCode == HttpURLConnection.HTTP_INTERNAL_ERROR && isResponseDataRpc) {
+				try (InputStream errorStream = connection.getErrorStream()) {
+					RpcMessage result = readResponse(contentType, errorStream);
+					timing.readNanos = timing.lap();
+					return result.setTiming(timing);
+				}
+			}
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + getUrl);
+			}
+			RpcMessage result;
+			try (InputStream responseStream = connection.getInputStream()) {
+				result = readResponse(contentType, responseStream);
+			}
+			timing.readNanos = timing.lap();
+			String etag = connection.getHeaderField("ETag");
+			long contentLength = connection.getContentLengthLong();
+			if (etag != null && contentLength >= 0 && contentLength <= MAX_CACHED_RESPONSE_BYTES) {
+				synchronized (responseCache) {
+					responseCache.put(cacheKey, new CachedResponse(etag, result.copy()));
+				}
+			}
+			return result.setTiming(timing);
+		} catch (IOException ex) {
+			connection.disconnect();
+			throw ex;
+		}
+	}
+
+	// Response streams are always read to the end and closed without disconnecting,
+	// so that HttpURLConnection can return the connection to its keep-alive cache
+	private RpcMessage executePost(RpcRequest message, RpcTunnel.CallTiming timing) throws Exception {
 		HttpURLConnection connection = null;
-		boolean isResponseDataJson = false;
+		boolean useCbor = cbor;
 		try {
+			byte[] body = useCbor ? message.toCbor() : message.toJson().toString().getBytes(StandardCharsets.UTF_8);
+			timing.serializeNanos += timing.lap();
 			connection = (HttpURLConnection) url.openConnection();
 			connection.setRequestMethod("POST");
-			connection.setRequestProperty("Content-Type", "application/json");
-			connection.setRequestProperty("Content-Length", Integer.toString(jsonBody.getBytes().length));
+			connection.setRequestProperty("Content-Type", useCbor ? Cbor.CONTENT_TYPE : "application/json");
+			if (useCbor) {
+				// Incrementally read results are requested as JSON, which is read element by element
+				connection.setRequestProperty("Accept", message.isResultStreamed() ? "application/json" : Cbor.CONTENT_TYPE);
+			}
+			connection.setRequestProperty("traceparent", timing.getTraceParent());
+			connection.setFixedLengthStreamingMode(body.length);
 			connection.setUseCaches(false);
 			connection.setDoInput(true);
 			connection.setDoOutput(true);
-			DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-			wr.writeBytes(jsonBody);
-			wr.flush();
-			wr.close();
+			connection.connect();
+			timing.connectNanos = timing.lap();
+			try (OutputStream outputStream = connection.getOutputStream()) {
+				outputStream.write(body);
+			}
+			timing.writeNanos = timing.lap();
 			InputStream inputStream = connection.getInputStream();
-			isResponseDataJson = connection.getHeaderField("Content-Type").equalsIgnoreCase("application/json");
-			return isResponseDataJson
-					? new RpcMessage(readJsonInputStream(inputStream))
-					: new RpcMessage(readBinaryInputStream(inputStream));
+			timing.waitNanos = timing.lap();
+			timing.serverNanos = parseServerTiming(connection.getHeaderField("Server-Timing"));
+			String contentType = getContentType(connection);
+			if (message.isResultStreamed() && "application/json".equals(contentType)) {
+				// The result is read and the stream closed by the caller
+				return new RpcMessage(inputStream).setTiming(timing);
+			}
+			try (InputStream responseStream = inputStream) {
+				RpcMessage result = readResponse(contentType, responseStream);
+				timing.readNanos = timing.lap();
+				return result.setTiming(timing);
+			}
 		} catch (IOException ex) {
-			isResponseDataJson = connection != null && connection.getHeaderField("Content-Type").equalsIgnoreCase("application/json");
-			if (isResponseDataJson && connection.getResponseCode() == 500) {
-				return new RpcMessage(readJsonInputStream(connection.getErrorStream()));
+			String contentType = connection != null ? getContentType(connection) : null;
+			boolean isResponseDataRpc = "application/json".equals(contentType) || Cbor.CONTENT_TYPE.equals(contentType);
+			if (isResponseDataRpc && connection.getResponseCode() == 500) {
+				timing.waitNanos = timing.lap();
+				timing.serverNanos = parseServerTiming(connection.getHeaderField("Server-Timing"));
+				try (InputStream errorStream = connection.getErrorStream()) {
+					RpcMessage result = readResponse(contentType, errorStream);
+					timing.readNanos = timing.lap();
+					return result.setTiming(timing);
+				}
 			}
-			throw ex;
-		} finally {
 			if (connection != null) {
 				connection.disconnect();
 			}
+			throw ex;
+		}
+	}
+
+	// Server-Timing: exec;dur=<milliseconds>
+	static long parseServerTiming(String serverTiming) {
+		if (serverTiming == null) {
+			return -1;
+		}
+		Matcher matcher = SERVER_TIMING_DURATION.matcher(serverTiming);
+		return matcher.find() ? (long) (Double.parseDouble(matcher.group(1)) * 1e6) : -1;
+	}
+
+	private static String getContentType(HttpURLConnection connection) {
+		return getMediaType(connection.getHeaderField("Content-Type"));
+	}
+
+	// The media type of a Content-Type header, without parameters such as the charset
+	static String getMediaType(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		int parametersStart = contentType.indexOf(';');
+		return (parametersStart == -1 ? contentType : contentType.substring(0, parametersStart)).trim().toLowerCase();
+	}
+
+	static RpcMessage readResponse(String contentType, InputStream is) throws IOException {
+		if ("application/json".equals(contentType)) {
+			return new RpcMessage(readJsonInputStream(is));
 		}
+		if (Cbor.CONTENT_TYPE.equals(contentType)) {
+			return RpcMessage.fromCbor(Cbor.decode(ByteBuffer.wrap(readBinaryInputStream(is))));
+		}
+		return new RpcMessage(readBinaryInputStream(is));
 	}
 
 	private static JsonObject readJsonInputStream(InputStream is) throws IOException {
@@ -146,7 +1120,7 @@ final class HttpTransport implements RpcTransport {
 		}
 	}
 
-	private static byte[] readBinaryInputStream(InputStream is) throws IOException {
+	static byte[] readBinaryInputStream(InputStream is) throws IOException {
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 		int bytesRead;
 		byte[] data = new byte[16384];
@@ -158,126 +1132,602 @@ final class HttpTransport implements RpcTransport {
 	}
 
 	@Override
-	public void close() throws Exception {
-		executor.shutdownNow();
+	public void close() {
+		// The executor belongs to the runtime
 	}
 }
 
 final class WebSocketTransport implements RpcTransport {
 
-	private final WebSocketClient webSocketClient;
-	private final RpcTunnel.EventHandler eventHandler;
+	// Number of stream result chunks the server may send ahead of our acknowledgements
+	private static final int CHUNK_WINDOW = 16;
+	// Delay before a held back bulk message is retried
+	private static final long BULK_RETRY_MILLIS = 1;
 
-	private ExecutorService executor =
-			new ThreadPoolExecutor(1, 10, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private final RpcRuntime runtime;
+	private final URI uri;
+	private final List<RpcTunnel.EventHandler> eventHandlers = new CopyOnWriteArrayList<>();
+	// Number of tunnels subscribed to each event and filter over this connection
+	private final Map<EventFilter, Integer> eventSubscribers = new HashMap<>();
 
-	private final CountDownLatch openEvent = new CountDownLatch(1);
-	private final Map<Integer, CountDownLatch> messageLocks = new ConcurrentHashMap<>();
-	private final ConcurrentHashMap<Integer, JsonObject> messageResults = new ConcurrentHashMap<>();
+	// The connection is only opened on first use; messages sent before it is open are flushed by onOpen,
+	// once the encoding has been negotiated. All messages pass through this queue and are written by one thread
+	// at a time, in priority order, and in the order they were sent within a priority.
+	private final PriorityQueue<QueuedSend> pendingSends = new PriorityQueue<>();
+	private final CompletableFuture<Void> openFuture = new CompletableFuture<>();
+	private WebSocketClient webSocketClient;
+	private long nextSendSequence = 0;
+	private boolean flushing = false;
+	private boolean flushScheduled = false;
+	private boolean connecting = false;
+	private boolean opened = false;
+	private boolean cborRequested = false;
+	// Only accessed by the connection's reader thread
+	private boolean greetingPending = false;
+	private volatile boolean cborNegotiated = false;
+	private volatile Exception lastError = null;
 
-	private class WebSocketClient extends org.java_websocket.client.WebSocketClient {
+	private final Map<Integer, CompletableFuture<RpcMessage>> pendingResults = new ConcurrentHashMap<>();
+	private final Map<Integer, RpcTunnel.CallTiming> pendingTimings = new ConcurrentHashMap<>();
+	private final Map<Integer, ChunkedInputStream> chunkedStreams = new ConcurrentHashMap<>();
 
-		private Throwable lastError = null;
+	private class WebSocketClient extends org.java_websocket.client.WebSocketClient {
 
-		public WebSocketClient(URI serverURI) {
-			super(serverURI);
-			this.connect();
+		public WebSocketClient(URI serverURI, Map<String, String> headers) {
+			super(serverURI, new Draft_17(), headers, 0);
 		}
 
 		@Override
 		public void onOpen(ServerHandshake serverHandshake) {
-			openEvent.countDown();
+			// Older servers accept any requested subprotocol, so CBOR is only used once the server's greeting
+			// has arrived as a CBOR message
+			if (Cbor.PROTOCOL.equals(serverHandshake.getFieldValue("Sec-WebSocket-Protocol"))) {
+				greetingPending = true;
+			} else {
+				onNegotiated(false);
+			}
+		}
+
+		private void onNegotiated(boolean cbor) {
+			greetingPending = false;
+			cborNegotiated = cbor;
+			synchronized (pendingSends) {
+				opened = true;
+			}
+			flushPendingSends();
+			openFuture.complete(null);
 		}
 
 		@Override
 		public void onMessage(String message) {
+			if (greetingPending) {
+				onNegotiated(false);
+			}
+			long receiveTime = System.nanoTime();
+			String eventId = peekEventId(message);
+			if (eventId != null) {
+				RpcTunnel.EventPayload event = new RpcTunnel.EventPayload(message);
+				for (RpcTunnel.EventHandler eventHandler : eventHandlers) {
+					eventHandler.onEvent(eventId, event);
+				}
+				return;
+			}
+
 			JsonObject jsonMessage = (JsonObject) new JsonParser().parse(message);
 			if (!jsonMessage.has("id")) {
 				return;
 			}
 			if (jsonMessage.get("id").getAsJsonPrimitive().isString()) {
-				String eventId = jsonMessage.get("id").getAsString();
-				eventHandler.onEvent(eventId, jsonMessage.get("result"));
+				RpcTunnel.EventPayload event = new RpcTunnel.EventPayload(message);
+				for (RpcTunnel.EventHandler eventHandler : eventHandlers) {
+					eventHandler.onEvent(jsonMessage.get("id").getAsString(), event);
+				}
 			} else {
-				int id = jsonMessage.get("id").getAsInt();
-				messageResults.putIfAbsent(id, jsonMessage);
-				CountDownLatch messageLock = messageLocks.get(id);
-				if (messageLock != null) {
-					messageLock.countDown();
+				Double serverTiming = jsonMessage.has("serverTiming") ? jsonMessage.get("serverTiming").getAsDouble() : null;
+				onResponse(jsonMessage.get("id").getAsInt(), new RpcMessage(jsonMessage), serverTiming, receiveTime);
+			}
+		}
+
+		@Override
+		public void onMessage(ByteBuffer frame) {
+			if (greetingPending) {
+				onNegotiated(true);
+			}
+			if (cborNegotiated) {
+				onCborMessage(frame);
+				return;
+			}
+
+			// Stream result chunk: [header length][{"id":..,"seq":..,"end":..}][chunk bytes]
+			byte[] headerBytes = new byte[frame.getInt()];
+			frame.get(headerBytes);
+			JsonObject header = (JsonObject) new JsonParser().parse(new String(headerBytes, StandardCharsets.UTF_8));
+			byte[] chunk = new byte[frame.remaining()];
+			frame.get(chunk);
+			onChunk(header.get("id").getAsInt(), header.has("end") && header.get("end").getAsBoolean(), chunk);
+		}
+
+		// CBOR connections send all messages, including stream result chunks { id, seq, chunk | end }, as binary frames
+		private void onCborMessage(ByteBuffer frame) {
+			long receiveTime = System.nanoTime();
+			String eventId = Cbor.peekEventId(frame);
+			if (eventId != null) {
+				byte[] message = new byte[frame.remaining()];
+				frame.get(message);
+				RpcTunnel.EventPayload event = new RpcTunnel.EventPayload(message);
+				for (RpcTunnel.EventHandler eventHandler : eventHandlers) {
+					eventHandler.onEvent(eventId, event);
 				}
+				return;
+			}
+
+			Object decoded;
+			try {
+				decoded = Cbor.decode(frame);
+			} catch (IOException e) {
+				onError(e);
+				return;
+			}
+			if (!(decoded instanceof Map) || !(((Map<?, ?>) decoded).get("id") instanceof Long)) {
+				return;
+			}
+			Map<?, ?> message = (Map<?, ?>) decoded;
+			int id = ((Long) message.get("id")).intValue();
+			if (message.containsKey("seq")) {
+				Object chunk = message.get("chunk");
+				onChunk(id, Boolean.TRUE.equals(message.get("end")), chunk instanceof byte[] ? (byte[]) chunk : new byte[0]);
+				return;
+			}
+			Object serverTiming = message.get("serverTiming");
+			try {
+				onResponse(id, RpcMessage.fromCbor(message),
+						serverTiming instanceof Number ? ((Number) serverTiming).doubleValue() : null, receiveTime);
+			} catch (IOException e) {
+				onError(e);
 			}
 		}
 
 		@Override
 		public void onClose(int code, String reason, boolean remote) {
-			lastError = new Exception("WebSocket closed");
-			WebSocketTransport.this.close();
+			failPending(new Exception("WebSocket closed"));
 		}
 
 		@Override
 		public void onError(Exception e) {
-			lastError = e;
-			openEvent.countDown();
+			failPending(e);
+		}
+
+	}
+
+	private void onResponse(int id, RpcMessage response, Double serverTimingMillis, long receiveTime) {
+		ChunkedInputStream chunkedStream = chunkedStreams.remove(id);
+		if (chunkedStream != null) {
+			// The stream result has already been delivered, fail its remaining data instead
+			String error = response.hasJsonMessage() ? String.valueOf(response.getJsonMessage().get("error")) : null;
+			chunkedStream.fail(new IOException(error));
+			return;
+		}
+		RpcTunnel.CallTiming timing = pendingTimings.remove(id);
+		if (timing != null) {
+			// The sending thread has ended its phases before the request was handed to the connection
+			synchronized (timing) {
+				timing.waitNanos = timing.lap(receiveTime);
+				timing.readNanos = timing.lap();
+				if (serverTimingMillis != null) {
+					timing.serverNanos = (long) (serverTimingMillis * 1e6);
+				}
+			}
+		}
+		deliverResult(id, response.setTiming(timing));
+	}
+
+	private void onChunk(int id, boolean end, byte[] chunk) {
+		ChunkedInputStream chunkedStream = chunkedStreams.get(id);
+		if (chunkedStream == null) {
+			if (!pendingResults.containsKey(id)) {
+				// Chunks which were already on their way when the stream was closed
+				return;
+			}
+			chunkedStream = new ChunkedInputStream(id);
+			chunkedStreams.put(id, chunkedStream);
+			RpcTunnel.CallTiming timing = pendingTimings.remove(id);
+			if (timing != null) {
+				// The wait ends with the first chunk; reading the stream is up to the caller
+				synchronized (timing) {
+					timing.waitNanos = timing.lap();
+				}
+			}
+			deliverResult(id, new RpcMessage(chunkedStream).setTiming(timing));
+		}
+
+		if (end) {
+			chunkedStreams.remove(id);
+			chunkedStream.end();
+		} else {
+			chunkedStream.push(chunk);
+		}
+	}
+
+	private static final class QueuedSend implements Comparable<QueuedSend> {
+		final RpcRequest request;
+		final RpcTunnel.CallTiming timing;
+		final long sequence;
+
+		QueuedSend(RpcRequest request, RpcTunnel.CallTiming timing, long sequence) {
+			this.request = request;
+			this.timing = timing;
+			this.sequence = sequence;
 		}
 
 		@Override
-		public void send(String text) {
-			super.send(text);
+		public int compareTo(QueuedSend other) {
+			int priorityOrder = request.getPriority().compareTo(other.request.getPriority());
+			return priorityOrder != 0 ? priorityOrder : Long.compare(sequence, other.sequence);
 		}
 	}
 
-	private void waitForOpenedOrFail() throws InterruptedException {
-		if (webSocketClient.getReadyState() == WebSocket.READYSTATE.OPEN) {
-			return;
+	/**
+	 * Receives a stream result sent by the server as a sequence of chunk frames.
+	 * Consumed chunks are acknowledged (rpc.ack) so the server never sends more than CHUNK_WINDOW chunks ahead.
+	 * Closing the stream before its end cancels it (rpc.cancel), so that the server stops reading its data.
+	 */
+	private final class ChunkedInputStream extends InputStream {
+		private final byte[] endOfStream = new byte[0];
+		private final int id;
+		private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+		private volatile IOException failure;
+		private byte[] currentChunk = new byte[0];
+		private int position;
+		private int consumedChunks;
+
+		ChunkedInputStream(int id) {
+			this.id = id;
+		}
+
+		void push(byte[] chunk) {
+			chunks.add(chunk);
+		}
+
+		void end() {
+			chunks.add(endOfStream);
+		}
+
+		void fail(IOException failure) {
+			this.failure = failure;
+			chunks.add(endOfStream);
+		}
+
+		// Returns false once the end of the stream is reached
+		private boolean nextChunk() throws IOException {
+			while (currentChunk != endOfStream && position >= currentChunk.length) {
+				try {
+					currentChunk = chunks.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				position = 0;
+				if (currentChunk != endOfStream && ++consumedChunks >= CHUNK_WINDOW / 2) {
+					acknowledgeChunks(id, consumedChunks);
+					consumedChunks = 0;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return currentChunk != endOfStream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return nextChunk() ? currentChunk[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextChunk()) {
+				return -1;
+			}
+			int count = Math.min(len, currentChunk.length - position);
+			System.arraycopy(currentChunk, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return currentChunk.length - position;
+		}
+
+		@Override
+		public void close() {
+			if (chunkedStreams.remove(id, this)) {
+				sendNotification("rpc.cancel", new Object[] { id });
+			}
+			failure = new IOException("Stream closed");
+			chunks.clear();
+			chunks.add(endOfStream);
+		}
+	}
+
+	/**
+	 * Returns the event name of event messages, which the server starts with a string id,
+	 * without parsing the event data. Returns null for all other messages.
+	 */
+	private static String peekEventId(String message) {
+		try (JsonReader reader = new JsonReader(new StringReader(message))) {
+			reader.beginObject();
+			if (reader.hasNext() && "id".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+				return reader.nextString();
+			}
+		} catch (IOException | IllegalStateException e) {
+			// Not an event, the message is parsed in full
+		}
+		return null;
+	}
+
+	private void deliverResult(int id, RpcMessage result) {
+		CompletableFuture<RpcMessage> pendingResult = pendingResults.remove(id);
+		if (pendingResult != null) {
+			pendingResult.complete(result);
+		}
+	}
+
+	private void failPending(Exception error) {
+		synchronized (pendingSends) {
+			lastError = error;
+			pendingSends.clear();
 		}
-		if (webSocketClient.lastError != null) {
-			throw new InterruptedException();
+		openFuture.completeExceptionally(error);
+		pendingTimings.clear();
+		for (Integer id : pendingResults.keySet()) {
+			CompletableFuture<RpcMessage> pendingResult = pendingResults.remove(id);
+			if (pendingResult != null) {
+				pendingResult.completeExceptionally(error);
+			}
 		}
-		openEvent.await();
-		if (webSocketClient.lastError != null || webSocketClient.getReadyState() != WebSocket.READYSTATE.OPEN) {
-			throw new InterruptedException();
+		for (ChunkedInputStream chunkedStream : chunkedStreams.values()) {
+			chunkedStream.fail(new IOException(error));
 		}
+		chunkedStreams.clear();
+	}
+
+	private void sendNotification(String method, Object[] params) {
+		// Protocol notifications such as acknowledgements must not wait behind queued calls
+		sendMessage(new RpcRequest(method, null, params, RpcTunnel.Priority.HIGH), null);
+	}
+
+	private void acknowledgeChunks(int id, int count) {
+		sendNotification("rpc.ack", new Object[] { id, count });
 	}
 
-	public WebSocketTransport(String httpUrl, RpcTunnel.EventHandler eventHandler) throws URISyntaxException {
+	public WebSocketTransport(String httpUrl, RpcRuntime runtime) throws URISyntaxException {
 		httpUrl = httpUrl.replace("http://", "ws://").replace("https://", "wss://");
-		this.eventHandler = eventHandler;
-		webSocketClient = new WebSocketClient(new URI(httpUrl));
+		uri = new URI(httpUrl);
+		this.runtime = runtime;
 	}
 
-	@Override
-	public Future<RpcMessage> sendMessage(final JsonObject message) {
+	private void connect() {
+		WebSocketClient client;
+		synchronized (pendingSends) {
+			if (connecting) {
+				return;
+			}
+			connecting = true;
+			Map<String, String> headers = new HashMap<>();
+			if (cborRequested) {
+				headers.put("Sec-WebSocket-Protocol", Cbor.PROTOCOL);
+			}
+			client = webSocketClient = new WebSocketClient(uri, headers);
+		}
+		client.connect();
+	}
 
-		Future<RpcMessage> future = executor.submit(new Callable<RpcMessage>() {
-			@Override
-			public RpcMessage call() throws Exception {
-				waitForOpenedOrFail();
-				webSocketClient.send(message.toString());
-				if (!message.has("id")) {
-					return null;
+	/**
+	 * @return Whether the connection has been closed or has failed, after which all calls over it fail
+	 */
+	boolean isFailed() {
+		return lastError != null;
+	}
+
+	/**
+	 * Requests the CBOR subprotocol or JSON, which only applies if the connection has not been opened yet
+	 */
+	void requestCbor(boolean cbor) {
+		synchronized (pendingSends) {
+			cborRequested = cbor;
+		}
+	}
+
+	private void send(RpcRequest request, RpcTunnel.CallTiming timing) {
+		synchronized (pendingSends) {
+			if (lastError != null) {
+				throw new IllegalStateException("WebSocket is not connected", lastError);
+			}
+			pendingSends.add(new QueuedSend(request, timing, nextSendSequence++));
+		}
+		flushPendingSends();
+	}
+
+	/**
+	 * Hands queued messages to the connection once it is open. Only one thread flushes at a time, and messages sent
+	 * meanwhile are queued and handed over by it, so priorities order the messages which wait for the connection
+	 * to open or for another send to finish.
+	 * A bulk message is held back while the connection still has buffered data. It is followed by an empty ping,
+	 * which stays buffered until the bulk message itself has been written, so at most one bulk message is ever
+	 * ahead of a newly sent call.
+	 */
+	private void flushPendingSends() {
+		synchronized (pendingSends) {
+			if (!opened || flushing) {
+				return;
+			}
+			flushing = true;
+		}
+		while (true) {
+			QueuedSend next;
+			synchronized (pendingSends) {
+				next = pendingSends.peek();
+				if (next != null && next.request.getPriority() == RpcTunnel.Priority.BULK
+						&& webSocketClient.getConnection().hasBufferedData()) {
+					scheduleFlush();
+					next = null;
 				}
-				int id = message.get("id").getAsInt();
-				if (!messageResults.containsKey(id)) {
-					CountDownLatch messageLock = new CountDownLatch(1);
-					messageLocks.put(id, messageLock);
-					messageLock.await();
+				if (next == null) {
+					flushing = false;
+					return;
 				}
-				return new RpcMessage(messageResults.remove(id));
+				pendingSends.poll();
 			}
-		});
-		return message.has("id") ? future : null;
+			try {
+				sendEncoded(next.request, next.timing);
+				if (next.request.getPriority() == RpcTunnel.Priority.BULK) {
+					FramedataImpl1 ping = new FramedataImpl1(Framedata.Opcode.PING);
+					ping.setFin(true);
+					webSocketClient.getConnection().sendFrame(ping);
+				}
+			} catch (RuntimeException sendException) {
+				failSend(next.request, sendException);
+			}
+		}
+	}
+
+	// Called with the pendingSends lock held
+	private void scheduleFlush() {
+		if (flushScheduled) {
+			return;
+		}
+		flushScheduled = true;
+		runtime.getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (pendingSends) {
+					flushScheduled = false;
+				}
+				flushPendingSends();
+			}
+		}, BULK_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private void failSend(RpcRequest request, Exception sendException) {
+		// Notifications have no result to report the failure to
+		if (request.getId() != null) {
+			CompletableFuture<RpcMessage> result = pendingResults.remove(request.getId());
+			pendingTimings.remove(request.getId());
+			if (result != null) {
+				result.completeExceptionally(sendException);
+			}
+		}
+	}
+
+	// The time spent in the queue is the write phase, and encoding is part of the serialization like over HTTP.
+	// Both end before the request is handed to the connection, after which the reader thread times the response.
+	private void sendEncoded(RpcRequest request, RpcTunnel.CallTiming timing) {
+		long encodeStart = System.nanoTime();
+		byte[] cborMessage = cborNegotiated ? request.toCbor() : null;
+		String jsonMessage = cborMessage == null ? request.toJson().toString() : null;
+		if (timing != null) {
+			synchronized (timing) {
+				timing.writeNanos = timing.lap(encodeStart);
+				timing.serializeNanos += timing.lap();
+			}
+		}
+		if (cborMessage != null) {
+			webSocketClient.send(cborMessage);
+		} else {
+			webSocketClient.send(jsonMessage);
+		}
+	}
+
+	/**
+	 * Opens the connection ahead of its first use and waits until it is established
+	 */
+	void warmUp() throws InterruptedException, ExecutionException {
+		connect();
+		openFuture.get();
+	}
+
+	void addEventHandler(RpcTunnel.EventHandler eventHandler) {
+		eventHandlers.add(eventHandler);
+	}
+
+	void removeEventHandler(RpcTunnel.EventHandler eventHandler) {
+		eventHandlers.remove(eventHandler);
+	}
+
+	/**
+	 * Subscribes the connection to the given event and filter (rpc.on) for the first subscribed tunnel
+	 */
+	synchronized void subscribe(EventFilter filter) {
+		Integer count = eventSubscribers.get(filter);
+		eventSubscribers.put(filter, count == null ? 1 : count + 1);
+		if (count == null) {
+			sendNotification("rpc.on", filter.toParams());
+		}
+	}
+
+	/**
+	 * Cancels the connection's event subscription (rpc.off) once no tunnel is subscribed to it
+	 */
+	synchronized void unsubscribe(EventFilter filter) {
+		Integer count = eventSubscribers.get(filter);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			eventSubscribers.put(filter, count - 1);
+		} else {
+			eventSubscribers.remove(filter);
+			sendNotification("rpc.off", filter.toParams());
+		}
+	}
+
+	@Override
+	public Future<RpcMessage> sendMessage(final RpcRequest message, RpcTunnel.CallTiming timing) {
+		connect();
+		CompletableFuture<RpcMessage> result = null;
+		if (message.getId() != null) {
+			int id = message.getId();
+			result = new CompletableFuture<>();
+			pendingResults.put(id, result);
+			// Accept stream results as chunk frames instead of failing them
+			message.addMember("chunked", CHUNK_WINDOW);
+			if (timing != null) {
+				pendingTimings.put(id, timing);
+			}
+		}
+		if (timing != null) {
+			message.addMember("traceparent", timing.getTraceParent());
+		}
+		try {
+			// The timing is only updated by the thread which hands the message to the connection from here on
+			send(message, timing);
+		} catch (RuntimeException sendException) {
+			failSend(message, sendException);
+		}
+		return result;
 	}
 
 	@Override
 	public void close() {
-		openEvent.countDown();
-		executor.shutdownNow();
-		webSocketClient.close();
+		WebSocketClient client;
+		synchronized (pendingSends) {
+			client = webSocketClient;
+			// Never connect after close
+			connecting = true;
+		}
+		if (client != null) {
+			client.close();
+		}
+		failPending(new Exception("WebSocket closed"));
 	}
 }
 
 abstract class ProxyFuture<T> implements Future<T> {
 	Future<RpcMessage> innerFuture;
+	private volatile RpcTunnel.CallTiming timing;
 
 	public ProxyFuture(Future<RpcMessage> innerFuture) {
 		this.innerFuture = innerFuture;
@@ -308,11 +1758,30 @@ abstract class ProxyFuture<T> implements Future<T> {
 		return innerConvert(innerFuture.get(timeout, unit));
 	}
 
+	/**
+	 * Returns the phase timing and trace id of the call once its result has been received, or null
+	 */
+	public RpcTunnel.CallTiming getTiming() {
+		return timing;
+	}
+
 	private T innerConvert(RpcMessage result) throws ExecutionException {
 		if (result == null) {
 			throw new ExecutionException("Empty result", null);
 		}
 
+		long decodeStart = System.nanoTime();
+		timing = result.getTiming();
+		try {
+			return decode(result);
+		} finally {
+			if (timing != null) {
+				timing.decodeNanos = System.nanoTime() - decodeStart;
+			}
+		}
+	}
+
+	private T decode(RpcMessage result) throws ExecutionException {
 		if (result.hasJsonMessage()) {
 			JsonObject jsonResult = result.getJsonMessage();
 			if (jsonResult.has("error") && !jsonResult.get("error").isJsonNull()) {
@@ -324,9 +1793,242 @@ abstract class ProxyFuture<T> implements Future<T> {
 				throw new RuntimeException("Failed to convert result", convertException);
 			}
 		} else {
-			return (T) result.getBinaryMessage();
+			try {
+				return convertBinary(result);
+			} catch (IOException readException) {
+				throw new ExecutionException("Failed to read binary result", readException);
+			}
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	T convertBinary(RpcMessage result) throws IOException {
+		return (T) result.getBinaryMessage();
+	}
+
 	abstract T convert(JsonElement result) throws Exception;
 }
+
+/**
+ * A Flow.Publisher for a single service event.
+ * Each subscriber gets its own bounded buffer; events are delivered only as demanded through request(n).
+ * Once a subscriber's buffer is full it is cancelled with an overflow error.
+ */
+abstract class EventPublisher<T> implements Flow.Publisher<T> {
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	private final RpcTunnel rpcTunnel;
+	private final String eventName;
+	private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+	private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	public EventPublisher(RpcTunnel rpcTunnel, String eventName) {
+		this.rpcTunnel = rpcTunnel;
+		this.eventName = eventName;
+	}
+
+	/**
+	 * Sets the number of undelivered events kept for each new subscriber before it is failed with an overflow error
+	 */
+	public EventPublisher<T> setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be positive");
+		}
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		Objects.requireNonNull(subscriber);
+		EventSubscription subscription = new EventSubscription(subscriber, bufferSize);
+		rpcTunnel.subscribe(eventName);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	void publish(RpcTunnel.EventPayload event) {
+		for (EventSubscription subscription : subscriptions) {
+			subscription.offer(event);
+		}
+	}
+
+	void complete() {
+		for (EventSubscription subscription : subscriptions) {
+			subscription.complete();
+		}
+	}
+
+	abstract T convert(JsonElement eventData) throws Exception;
+
+	private final class EventSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super T> subscriber;
+		private final int capacity;
+		private final ArrayDeque<RpcTunnel.EventPayload> buffer = new ArrayDeque<>();
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+		private volatile Throwable error;
+		private volatile boolean completed;
+
+		EventSubscription(Flow.Subscriber<? super T> subscriber, int capacity) {
+			this.subscriber = subscriber;
+			this.capacity = capacity;
+		}
+
+		void offer(RpcTunnel.EventPayload event) {
+			synchronized (buffer) {
+				if (buffer.size() < capacity) {
+					buffer.add(event);
+				} else if (error == null) {
+					error = new IllegalStateException("Event buffer overflow: " + eventName);
+				}
+			}
+			drain();
+		}
+
+		void complete() {
+			completed = true;
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Non-positive request: " + n);
+			} else {
+				long current, next;
+				do {
+					current = demand.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!demand.compareAndSet(current, next));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled.compareAndSet(false, true)) {
+				subscriptions.remove(this);
+				synchronized (buffer) {
+					buffer.clear();
+				}
+				rpcTunnel.unsubscribe(eventName);
+			}
+		}
+
+		// Serializes all subscriber signals; whichever thread gets here first delivers on behalf of the others
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				while (!cancelled.get()) {
+					Throwable failure = error;
+					if (failure != null) {
+						cancel();
+						subscriber.onError(failure);
+						break;
+					}
+					RpcTunnel.EventPayload event;
+					boolean isEmpty;
+					synchronized (buffer) {
+						event = demand.get() > 0 ? buffer.poll() : null;
+						isEmpty = buffer.isEmpty();
+					}
+					if (event == null) {
+						if (completed && isEmpty) {
+							cancel();
+							subscriber.onComplete();
+						}
+						break;
+					}
+					if (demand.get() != Long.MAX_VALUE) {
+						demand.decrementAndGet();
+					}
+					T value;
+					try {
+						value = convert(event.get());
+					} catch (Exception convertException) {
+						error = convertException;
+						continue;
+					}
+					subscriber.onNext(value);
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
+
+/**
+ * Delivers only the newest event of a conflating subscription, on the runtime's event thread.
+ * Deliveries never overlap; events received while the handler is busy replace each other.
+ */
+abstract class EventConflator implements Runnable {
+	private final AtomicReference<RpcTunnel.EventPayload> latest = new AtomicReference<>();
+	private final AtomicInteger wip = new AtomicInteger();
+	private final Executor executor;
+	private final ScheduledFuture<?> timer;
+	private volatile boolean closed = false;
+
+	public EventConflator(RpcTunnel rpcTunnel, RpcTunnel.Conflation conflation) {
+		RpcRuntime runtime = rpcTunnel.getRuntime();
+		executor = runtime.getEventExecutor();
+		if (conflation.intervalNanos > 0) {
+			timer = runtime.getScheduler().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					if (latest.get() != null) {
+						drain();
+					}
+				}
+			}, conflation.intervalNanos, conflation.intervalNanos, TimeUnit.NANOSECONDS);
+		} else {
+			timer = null;
+		}
+	}
+
+	void offer(RpcTunnel.EventPayload event) {
+		if (closed) {
+			return;
+		}
+		latest.set(event);
+		if (timer == null) {
+			drain();
+		}
+	}
+
+	void close() {
+		closed = true;
+		latest.set(null);
+		if (timer != null) {
+			timer.cancel(false);
+		}
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() == 0) {
+			executor.execute(this);
+		}
+	}
+
+	@Override
+	public void run() {
+		int missed = 1;
+		do {
+			RpcTunnel.EventPayload event = latest.getAndSet(null);
+			if (event != null && !closed) {
+				try {
+					deliver(event);
+				} catch (Exception deliveryException) {
+					// A failing handler must not stop the delivery of later events
+				}
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	abstract void deliver(RpcTunnel.EventPayload event) throws Exception;
+}
@@ -11,6 +11,7 @@
 // -32700: parse error
 
 const fs = require('fs');
+const stream = require('stream');
 const Promise = require('bluebird');
 const _ = require('lodash');
 const chai = require('chai');
@@ -26,12 +27,17 @@ const bodyParser = require('body-parser');
 const Service = jsonws.service;
 const ServiceRegistry = jsonws.registry.ServiceRegistry;
 const ServiceError = require('../../lib/error');
+const cbor = require('../../lib/transport/cbor');
 const SocketIOTransport = require('../../lib/transport/socket-io-transport');
 const WebSocketClientTransport = require('../../lib/client/transports/ws');
 const SocketIOClientTransport = require('../../lib/client/transports/socket-io');
 
 const AssertionError = chai.AssertionError;
 
+const TRACE_PARENT = '00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01';
+
+let endlessStreamClosed = false;
+
 function buildTestService() {
 	const service = new Service('1.0.0', 'test');
 
@@ -100,6 +106,24 @@ function buildTestService() {
 		name: 'getStream',
 		returns: 'stream',
 	});
+	service.define(
+		{
+			name: 'getEndlessStream',
+			returns: 'stream',
+		},
+		function() {
+			let seq = 0;
+			const readable = new stream.Readable({
+				read() {
+					this.push(Buffer.from(`chunk ${seq++}\n`));
+				},
+			});
+			readable.on('close', () => {
+				endlessStreamClosed = true;
+			});
+			return readable;
+		}
+	);
 	service.define({
 		name: 'throwError',
 		returns: 'async',
@@ -137,6 +161,7 @@ function buildTestService() {
 		{
 			name: 'hello',
 			returns: 'string',
+			readOnly: true,
 		},
 		function() {
 			return 'world';
@@ -195,10 +220,25 @@ function buildTestService() {
 		name: 'returnError',
 		returns: 'error',
 	});
+	service.define(
+		{
+			name: 'bufferSize',
+			params: [{ name: 'data', type: 'buffer' }],
+			returns: 'int',
+		},
+		function(data) {
+			return data.length;
+		}
+	);
 	service.event('testEvent');
 	service.event('testDataEvent');
 	service.event('test.the.namespace.event');
 	service.event('testContextEvent');
+	service.type('JobProgress', {
+		jobId: 'string',
+		step: 'int',
+	});
+	service.event('jobProgress', { type: 'JobProgress', filters: ['jobId'] });
 
 	const testAPI = new TestAPI();
 	service.defineAll(testAPI);
@@ -214,6 +254,12 @@ function buildTestService() {
 		testAPI.emit('testContextEvent', { hello: 'hello1234' }, { ctxId: 'id1234' });
 		testAPI.emit('testContextEvent', { hello: 'hello5678' }, { ctxId: 'id5678' });
 	}, 100);
+	let step = 0;
+	setInterval(function() {
+		step++;
+		testAPI.emit('jobProgress', { jobId: 'job1', step });
+		testAPI.emit('jobProgress', { jobId: 'job2', step });
+	}, 100);
 
 	return service;
 }
@@ -512,6 +558,85 @@ describe('RPC over HTTP', function() {
 			expect(results).to.deep.eq(expected);
 		});
 	});
+
+	it('returns the server execution time for traced calls', function() {
+		return Promise.all([
+			request.postAsync({
+				url: serverUrl + '/sum',
+				json: { params: [1, 2] },
+				headers: { traceparent: TRACE_PARENT },
+			}),
+			postAsync('sum', { params: [1, 2] }),
+		]).then(function(results) {
+			const traced = results[0];
+			const untraced = results[1];
+			expect(traced[1].result).to.eq(3);
+			expect(traced[0].headers['server-timing']).to.match(/^exec;dur=[\d.]+$/);
+			expect(traced[1].serverTiming).to.be.undefined;
+			expect(untraced[1].result).to.eq(3);
+			expect(untraced[0].headers['server-timing']).to.be.undefined;
+		});
+	});
+
+	it('revalidates GET calls of read-only methods with an ETag', function() {
+		return getAsync('hello')
+			.then(function(result) {
+				const etag = result[0].headers['etag'];
+				expect(etag).to.match(/^"[^"]+"$/);
+				expect(result[0].headers['cache-control']).to.eq('no-cache');
+				return Promise.all([
+					request.getAsync({
+						url: serverUrl + '/hello',
+						headers: { 'If-None-Match': etag },
+					}),
+					request.getAsync({
+						url: serverUrl + '/hello',
+						headers: { 'If-None-Match': '"stale"' },
+					}),
+					getAsync('sum?a=2&b=1'),
+				]);
+			})
+			.then(function(results) {
+				expect(results[0][0].statusCode).to.eq(304);
+				expect(results[0][1]).to.eq('');
+				expect(results[1][0].statusCode).to.eq(200);
+				expect(JSON.parse(results[1][1]).result).to.eq('world');
+				// Methods which are not read-only are not revalidated
+				expect(results[2][0].headers['cache-control']).to.be.undefined;
+			});
+	});
+
+	it('negotiates CBOR with the Content-Type and Accept headers', function() {
+		function cborPostAsync(message) {
+			return request.postAsync({
+				url: serverUrl,
+				body: cbor.encode(message),
+				encoding: null,
+				headers: { 'Content-Type': cbor.CONTENT_TYPE, Accept: cbor.CONTENT_TYPE },
+			});
+		}
+
+		return Promise.all([
+			cborPostAsync({
+				jsonrpc: '2.0',
+				id: 1,
+				method: 'bufferSize',
+				params: [Buffer.from([1, 2, 3])],
+			}),
+			cborPostAsync({ jsonrpc: '2.0', id: 2, method: 'sum', params: { a: 2, b: 5 } }),
+			cborPostAsync({ jsonrpc: '2.0', id: 3, method: 'throwError' }),
+			postAsync('sum', { params: [1, 2] }),
+		]).then(function(results) {
+			expect(results[0][0].headers['content-type']).to.match(/^application\/cbor/);
+			expect(cbor.decode(results[0][1]).result).to.eq(3);
+			expect(cbor.decode(results[1][1]).result).to.eq(7);
+			expect(results[2][0].statusCode).to.eq(500);
+			expect(cbor.decode(results[2][1]).error.code).to.eq(-32000);
+			// JSON remains the default
+			expect(results[3][0].headers['content-type']).to.match(/^application\/json/);
+			expect(results[3][1].result).to.eq(3);
+		});
+	});
 });
 
 describe('RPC over WebSocket', function() {
@@ -728,6 +853,200 @@ describe('RPC over WebSocket', function() {
 			done();
 		}, 120);
 	});
+
+	it('streams results as chunks when requested', function(done) {
+		const ws = new WebSocket(serverWsUrl);
+		const chunks = [];
+
+		ws.on('open', function() {
+			ws.send(JSON.stringify({ jsonrpc: '2.0', id: 1, method: 'getStream', chunked: 1 }));
+		});
+		ws.on('message', function(data, flags) {
+			if (!flags.binary) {
+				const parsedData = JSON.parse(data);
+				expect(parsedData.error).to.be.undefined;
+				return;
+			}
+
+			const headerLength = data.readUInt32BE(0);
+			const header = JSON.parse(data.slice(4, 4 + headerLength).toString());
+			expect(header.id).to.eq(1);
+			expect(header.seq).to.eq(chunks.length);
+
+			if (header.end) {
+				expect(Buffer.concat(chunks).toString()).to.eq(fs.readFileSync(__filename, 'utf8'));
+				ws.close();
+				done();
+			} else {
+				chunks.push(data.slice(4 + headerLength));
+				// A window of 1 chunk means that each chunk must be acknowledged before the next one is sent
+				ws.send(JSON.stringify({ jsonrpc: '2.0', method: 'rpc.ack', params: [1, 1] }));
+			}
+		});
+	});
+
+	it('destroys a chunked stream which the client cancels', function(done) {
+		const ws = new WebSocket(serverWsUrl);
+		let chunkCount = 0;
+
+		ws.on('open', function() {
+			ws.send(
+				JSON.stringify({ jsonrpc: '2.0', id: 1, method: 'getEndlessStream', chunked: 2 })
+			);
+		});
+		ws.on('message', function(data, flags) {
+			if (!flags.binary) {
+				return;
+			}
+			chunkCount++;
+			if (chunkCount === 2) {
+				ws.send(JSON.stringify({ jsonrpc: '2.0', method: 'rpc.cancel', params: [1] }));
+				// Acknowledgements of a cancelled stream must not resume it
+				ws.send(JSON.stringify({ jsonrpc: '2.0', method: 'rpc.ack', params: [1, 16] }));
+			}
+		});
+
+		setTimeout(function() {
+			expect(chunkCount).to.eq(2);
+			expect(endlessStreamClosed).to.be.true;
+			ws.close();
+			done();
+		}, 150);
+	});
+
+	it('returns the server execution time for traced calls', function(done) {
+		const ws = new WebSocket(serverWsUrl);
+
+		ws.on('open', function() {
+			ws.send(
+				JSON.stringify({
+					jsonrpc: '2.0',
+					id: 1,
+					method: 'sum',
+					params: [1, 2],
+					traceparent: TRACE_PARENT,
+				})
+			);
+		});
+		ws.on('message', function(data) {
+			const parsedData = JSON.parse(data);
+			if (Object.keys(parsedData).length == 0) return;
+			expect(parsedData.result).to.eq(3);
+			expect(parsedData.serverTiming).to.be.a('number');
+			ws.close();
+			done();
+		});
+	});
+
+	it('exchanges CBOR messages over the CBOR subprotocol', function(done) {
+		const ws = new WebSocket(serverWsUrl, cbor.PROTOCOL);
+		const chunks = [];
+		let bufferSize = null;
+
+		ws.on('open', function() {
+			expect(ws.protocol).to.eq(cbor.PROTOCOL);
+			ws.send(
+				cbor.encode({
+					jsonrpc: '2.0',
+					id: 1,
+					method: 'bufferSize',
+					params: [Buffer.alloc(10)],
+				})
+			);
+			ws.send(cbor.encode({ jsonrpc: '2.0', id: 2, method: 'getStream', chunked: 16 }));
+		});
+		ws.on('message', function(data, flags) {
+			expect(flags.binary).to.be.true;
+			const message = cbor.decode(data);
+			if (message.id === 1) {
+				bufferSize = message.result;
+			} else if (message.id === 2) {
+				expect(message.error).to.be.undefined;
+				if (!message.end) {
+					chunks.push(message.chunk);
+					return;
+				}
+				expect(bufferSize).to.eq(10);
+				expect(Buffer.concat(chunks).toString()).to.eq(fs.readFileSync(__filename, 'utf8'));
+				ws.close();
+				done();
+			}
+		});
+	});
+
+	it('greets CBOR connections with a CBOR message', function(done) {
+		// Older servers echo any requested subprotocol, so clients only switch to CBOR on a CBOR greeting
+		const cborWs = new WebSocket(serverWsUrl, cbor.PROTOCOL);
+		const jsonWs = new WebSocket(serverWsUrl);
+		let greetings = 0;
+
+		cborWs.once('message', function(data, flags) {
+			expect(flags.binary).to.be.true;
+			expect(cbor.decode(data)).to.deep.equal({});
+			cborWs.close();
+			if (++greetings === 2) done();
+		});
+		jsonWs.once('message', function(data, flags) {
+			expect(flags.binary).to.not.be.true;
+			expect(JSON.parse(data)).to.deep.equal({});
+			jsonWs.close();
+			if (++greetings === 2) done();
+		});
+	});
+
+	it('sends only the events which match the subscription filters', function(done) {
+		const ws = new WebSocket(serverWsUrl);
+		const received = [];
+
+		ws.on('open', function() {
+			ws.send(
+				JSON.stringify({
+					jsonrpc: '2.0',
+					method: 'rpc.on',
+					params: ['jobProgress', { jobId: 'job2' }],
+				})
+			);
+			ws.send(
+				JSON.stringify({
+					jsonrpc: '2.0',
+					id: 1,
+					method: 'rpc.on',
+					params: ['jobProgress', { state: 'done' }],
+				})
+			);
+		});
+		ws.on('message', function(data) {
+			const parsedData = JSON.parse(data);
+			if (parsedData.id === 1) {
+				expect(parsedData.error.code).to.eq(-32602);
+			} else if (parsedData.id === 'jobProgress') {
+				received.push(parsedData.result.jobId);
+			}
+		});
+
+		setTimeout(function() {
+			expect(received).not.to.be.empty;
+			expect(received.every(jobId => jobId === 'job2')).to.be.true;
+			ws.close();
+			done();
+		}, 250);
+	});
+
+	it('returns an error for stream results without a chunked request', function(done) {
+		const ws = new WebSocket(serverWsUrl);
+
+		ws.on('open', function() {
+			ws.send(JSON.stringify({ jsonrpc: '2.0', id: 1, method: 'getStream' }));
+		});
+		ws.on('message', function(data) {
+			const parsedData = JSON.parse(data);
+			if (Object.keys(parsedData).length == 0) return;
+			expect(parsedData.id).to.eq(1);
+			expect(parsedData.error.code).to.eq(-32000);
+			ws.close();
+			done();
+		});
+	});
 });
 
 const TRANSPORT_CONSTRUCTION = {
@@ -73,6 +73,14 @@ describe('Service class', function() {
 			expect(service.methodMap[METHOD_NAME].callback).to.be.a('function');
 		});
 
+		it('marks methods as read-only with the readOnly option', function() {
+			service.define(METHOD_NAME);
+			service.define({ name: 'method2', readOnly: true });
+
+			expect(service.methodMap[METHOD_NAME].readOnly).to.be.false;
+			expect(service.methodMap['method2'].readOnly).to.be.true;
+		});
+
 		describe('define - methodInfo object', function() {
 			function isBoundFunction(func) {
 				if (typeof func.prototype === 'object') return false;
@@ -746,6 +754,27 @@ describe('Service class', function() {
 			expect(service.eventMap[EVENT_NAME].type).to.eq('number');
 			expect(service.eventMap[EVENT_NAME].isArray).to.be.true;
 		});
+
+		it('declares filters on fields of the event type', function() {
+			service.type('Progress', { jobId: 'string', step: 'int', tags: ['string'] });
+			service.event(EVENT_NAME, { type: 'Progress', filters: ['jobId'] });
+
+			expect(service.eventMap[EVENT_NAME].filters).to.deep.eq([
+				{ name: 'jobId', type: 'string' },
+			]);
+
+			expect(() => {
+				service.event('otherEvent', { type: 'Progress', filters: ['state'] });
+			}).to.throw(/undefined event filter for event otherEvent: state/i);
+
+			expect(() => {
+				service.event('otherEvent', { type: 'Progress', filters: ['tags'] });
+			}).to.throw(/event filters must be of a string, number or boolean type/i);
+
+			expect(() => {
+				service.event('otherEvent', { type: 'number', filters: ['jobId'] });
+			}).to.throw(/event filters require an object event type/i);
+		});
 	});
 
 	describe('enum', function() {
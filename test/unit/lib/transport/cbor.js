@@ -0,0 +1,86 @@
+'use strict';
+
+const chai = require('chai');
+const expect = chai.expect;
+
+const cbor = require('../../../../lib/transport/cbor');
+
+describe('CBOR', function() {
+	function hex(value) {
+		return cbor.encode(value).toString('hex');
+	}
+
+	function decodeHex(data) {
+		return cbor.decode(Buffer.from(data, 'hex'));
+	}
+
+	it('encodes values like the RFC 7049 examples', function() {
+		expect(hex(0)).to.equal('00');
+		expect(hex(23)).to.equal('17');
+		expect(hex(24)).to.equal('1818');
+		expect(hex(1000)).to.equal('1903e8');
+		expect(hex(1000000)).to.equal('1a000f4240');
+		expect(hex(1000000000000)).to.equal('1b000000e8d4a51000');
+		expect(hex(-1000)).to.equal('3903e7');
+		expect(hex(1.1)).to.equal('fb3ff199999999999a');
+		expect(hex(true)).to.equal('f5');
+		expect(hex(null)).to.equal('f6');
+		expect(hex('IETF')).to.equal('6449455446');
+		expect(hex(Buffer.from([1, 2, 3, 4]))).to.equal('4401020304');
+		expect(hex([1, [2, 3]])).to.equal('8201820203');
+		expect(hex({ a: 1, b: [2, 3] })).to.equal('a26161016162820203');
+	});
+
+	it('encodes values the way JSON.stringify serializes them', function() {
+		const date = new Date(0);
+		expect(cbor.decode(cbor.encode({ date, missing: undefined, nan: NaN }))).to.deep.equal({
+			date: date.toJSON(),
+			nan: null,
+		});
+		expect(cbor.decode(cbor.encode([undefined]))).to.deep.equal([null]);
+	});
+
+	it('decodes indefinite lengths, half floats and tags', function() {
+		expect(decodeHex('9f018202039f0405ffff')).to.deep.equal([1, [2, 3], [4, 5]]);
+		expect(decodeHex('bf61610161629f0203ffff')).to.deep.equal({ a: 1, b: [2, 3] });
+		expect(decodeHex('5f42010243030405ff')).to.deep.equal(Buffer.from([1, 2, 3, 4, 5]));
+		expect(decodeHex('7f657374726561646d696e67ff')).to.equal('streaming');
+		expect(decodeHex('f93c00')).to.equal(1);
+		expect(decodeHex('f9c400')).to.equal(-4);
+		expect(decodeHex('c074323031332d30332d32315432303a30343a30305a')).to.equal(
+			'2013-03-21T20:04:00Z'
+		);
+	});
+
+	it('round-trips JSON-RPC messages with buffers', function() {
+		const message = {
+			jsonrpc: '2.0',
+			id: 1,
+			result: { data: Buffer.from('hello'), values: [1, -2.5, 'three', false, null] },
+		};
+		expect(cbor.decode(cbor.encode(message))).to.deep.equal(message);
+	});
+
+	it('decodes __proto__ keys as own properties', function() {
+		const json = '{"__proto__":{"polluted":true},"a":1}';
+		const decoded = cbor.decode(cbor.encode(JSON.parse(json)));
+		expect(Object.getPrototypeOf(decoded)).to.equal(Object.prototype);
+		expect(decoded.polluted).to.be.undefined;
+		expect(Object.keys(decoded)).to.deep.equal(['__proto__', 'a']);
+		expect(decoded.__proto__).to.deep.equal({ polluted: true });
+		expect(JSON.stringify(decoded)).to.equal(json);
+	});
+
+	it('rejects truncated and trailing data', function() {
+		expect(() => decodeHex('1903')).to.throw(/Unexpected end/);
+		expect(() => decodeHex('0101')).to.throw(/Unexpected data/);
+	});
+
+	it('rejects truncated indefinite length items and oversized lengths', function() {
+		expect(() => decodeHex('9f01')).to.throw(/Unexpected end/);
+		expect(() => decodeHex('bf6161')).to.throw(/Unexpected end/);
+		expect(() => decodeHex('5f')).to.throw(/Unexpected end/);
+		expect(() => decodeHex('5bffffffffffffffff')).to.throw(/Unexpected end/);
+		expect(() => decodeHex('9bffffffffffffffff')).to.throw(/Unexpected end/);
+	});
+});